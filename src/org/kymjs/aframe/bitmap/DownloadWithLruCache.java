@@ -60,7 +60,9 @@ public class DownloadWithLruCache implements I_ImageLoder {
             return null;
         }
         byte[] img = null;
-        if (config.openDiskCache) { // 如果开启本地缓存，则调用lruCache查找
+        boolean fromNet = imagePath.trim().toLowerCase().startsWith("http");
+        // 本地图片不写入diskCache（只会复制一份原文件），也就不必查找
+        if (config.openDiskCache && fromNet) {
             img = diskCache.getByteArray(CipherUtils.md5(imagePath));
             if (img != null) {
                 showLogIfOpen(imagePath
@@ -68,7 +70,7 @@ public class DownloadWithLruCache implements I_ImageLoder {
             }
         }
         if (img == null) { // diskCache中没有，重新读取资源
-            if (imagePath.trim().toLowerCase().startsWith("http")) {
+            if (fromNet) {
                 // 网络图片：首先从本地缓如果存读取，本地没有，则重新从网络加载
                 img = loadImgFromNet(imagePath);
             } else {
@@ -123,7 +125,6 @@ public class DownloadWithLruCache implements I_ImageLoder {
             fis = new FileInputStream(imagePath);
             if (fis != null) {
                 data = FileUtils.input2byte(fis);
-                putBmpToDC(imagePath, data); // 建立diskLru缓存
                 showLogIfOpen(imagePath
                         + "\ndownload success, from be local disk file");
             }
@@ -143,7 +144,13 @@ public class DownloadWithLruCache implements I_ImageLoder {
      */
     @Override
     public Bitmap getBitmapFromDisk(String key) {
-        return diskCache.get(CipherUtils.md5(key));
+        // 磁盘中保存的是原图，需要按配置的尺寸解码
+        byte[] data = diskCache.getByteArray(CipherUtils.md5(key));
+        if (data == null) {
+            return null;
+        }
+        return BitmapCreate.bitmapFromByteArray(data, 0, data.length,
+                config.width, config.height);
     }
 
     /**
@@ -161,7 +168,7 @@ public class DownloadWithLruCache implements I_ImageLoder {
     }
 
     /**
-     * 加入磁盘缓存
+     * 加入磁盘缓存，保存的是收到的原始数据，不再解码后重新压缩
      * 
      * @param imagePath
      *            图片路径
@@ -170,10 +177,7 @@ public class DownloadWithLruCache implements I_ImageLoder {
      */
     private void putBmpToDC(String imagePath, byte[] bmpByteArray) {
         if (config.openDiskCache) {
-            diskCache.put(CipherUtils.md5(imagePath), BitmapCreate
-                    .bitmapFromByteArray(bmpByteArray, 0,
-                            bmpByteArray.length, config.width,
-                            config.height));
+            diskCache.put(CipherUtils.md5(imagePath), bmpByteArray);
         }
     }
 
@@ -76,7 +76,9 @@ public class KJBitmap {
     private KJBitmap(KJBitmapConfig bitmapConfig) {
         downloader = new DownloadWithLruCache(bitmapConfig); // 配置图片加载器
         mMemoryCache = new BitmapMemoryCache(
-                bitmapConfig.memoryCacheSize);
+                bitmapConfig.memoryCacheSize,
+                bitmapConfig.concurrentMemoryCache,
+                bitmapConfig.openTinyLfu);
         taskCollection = new HashSet<BitmapWorkerTask>();
     }
 
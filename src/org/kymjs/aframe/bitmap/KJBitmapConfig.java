@@ -48,6 +48,10 @@ public final class KJBitmapConfig {
     public boolean openMemoryCache = true;
     /** 内存缓存大小 */
     public int memoryCacheSize;
+    /** 是否使用分段锁的并发内存缓存（多线程加载图片时减少锁竞争） */
+    public boolean concurrentMemoryCache = false;
+    /** 内存缓存是否使用W-TinyLFU准入策略（列表快速滑动时保护常用图片），仅对非并发内存缓存生效 */
+    public boolean openTinyLfu = false;
 
     /** 本地图片缓存路径 */
     public String cachePath = "/KJLibrary/";
@@ -15,7 +15,10 @@
  */
 package org.kymjs.aframe.bitmap.utils;
 
+import org.kymjs.aframe.core.ConcurrentMemoryLruCache;
+import org.kymjs.aframe.core.I_MemoryCache;
 import org.kymjs.aframe.core.MemoryLruCache;
+import org.kymjs.aframe.core.TinyLfuAdmission;
 import org.kymjs.aframe.utils.SystemTool;
 
 import android.annotation.SuppressLint;
@@ -31,11 +34,11 @@ import android.graphics.Bitmap;
  */
 public final class BitmapMemoryCache {
 
-    private MemoryLruCache<String, Bitmap> cache;
+    private I_MemoryCache<String, Bitmap> cache;
 
     public BitmapMemoryCache() {
         int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
-        init(maxMemory / 8);
+        init(maxMemory / 8, false, false);
     }
 
     /**
@@ -43,26 +46,68 @@ public final class BitmapMemoryCache {
      *            使用内存缓存的内存大小，单位：kb
      */
     public BitmapMemoryCache(int maxSize) {
-        init(maxSize);
+        init(maxSize, false, false);
     }
 
     /**
      * @param maxSize
      *            使用内存缓存的内存大小，单位：kb
+     * @param concurrent
+     *            是否使用分段锁的并发缓存，多个线程同时加载图片时可以减少锁竞争
      */
-    @SuppressLint("NewApi")
-    private void init(int maxSize) {
-        cache = new MemoryLruCache<String, Bitmap>(maxSize) {
-            @Override
-            protected int sizeOf(String key, Bitmap value) {
-                super.sizeOf(key, value);
-                if (SystemTool.getSDKVersion() >= 12) {
-                    return value.getByteCount() / 1024;
-                } else {
-                    return value.getRowBytes() * value.getHeight() / 1024;
+    public BitmapMemoryCache(int maxSize, boolean concurrent) {
+        init(maxSize, concurrent, false);
+    }
+
+    /**
+     * @param maxSize
+     *            使用内存缓存的内存大小，单位：kb
+     * @param concurrent
+     *            是否使用分段锁的并发缓存，多个线程同时加载图片时可以减少锁竞争
+     * @param tinyLfu
+     *            是否使用W-TinyLFU准入策略，防止快速滑动时只显示一次的图片把常用图片挤出缓存；
+     *            仅在concurrent为false时生效
+     */
+    public BitmapMemoryCache(int maxSize, boolean concurrent,
+            boolean tinyLfu) {
+        init(maxSize, concurrent, tinyLfu);
+    }
+
+    /**
+     * @param maxSize
+     *            使用内存缓存的内存大小，单位：kb
+     */
+    private void init(int maxSize, boolean concurrent, boolean tinyLfu) {
+        if (concurrent) {
+            cache = new ConcurrentMemoryLruCache<String, Bitmap>(maxSize) {
+                @Override
+                protected int sizeOf(String key, Bitmap value) {
+                    return bitmapSize(value);
+                }
+            };
+        } else {
+            // 按平均每张图片32kb估算缓存中的图片数量
+            TinyLfuAdmission<String> admission = tinyLfu ? new TinyLfuAdmission<String>(
+                    maxSize / 32) : null;
+            cache = new MemoryLruCache<String, Bitmap>(maxSize, admission) {
+                @Override
+                protected int sizeOf(String key, Bitmap value) {
+                    return bitmapSize(value);
                 }
-            }
-        };
+            };
+        }
+    }
+
+    /**
+     * 计算bitmap占用的内存大小，单位：kb
+     */
+    @SuppressLint("NewApi")
+    private static int bitmapSize(Bitmap value) {
+        if (SystemTool.getSDKVersion() >= 12) {
+            return value.getByteCount() / 1024;
+        } else {
+            return value.getRowBytes() * value.getHeight() / 1024;
+        }
     }
 
     public void put(String key, Bitmap bitmap) {
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2014, KJFrameForAndroid 张涛 (kymjs123@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kymjs.aframe.core;
+
+import java.util.ArrayList;
+
+/**
+ * 按大小分级的byte[]缓冲池，用于复用各个IO循环中的读写缓冲区，减少频繁分配带来的GC<br>
+ *
+ * <b>说明</b> 缓冲区按1K、4K、8K、16K、32K、64K分级，getBuf返回不小于所需大小的最小一级；
+ * 超过64K的请求直接分配，归还时也不会被保留<br>
+ * <b>说明</b> 池中闲置缓冲区的总大小不会超过构造时指定的上限，超出的部分在归还时直接丢弃<br>
+ * <b>说明</b> 本类是线程安全的；从池中取出的缓冲区内容是上次使用留下的，不会被清零<br>
+ * <b>创建时间</b> 2014-10-23
+ *
+ * @author kymjs(kymjs123@gmail.com)
+ * @version 1.0
+ */
+public final class ByteArrayPool {
+    /** 各级缓冲区的大小，必须递增 */
+    private static final int[] SIZE_CLASSES = { 1024, 4 * 1024,
+            8 * 1024, 16 * 1024, 32 * 1024, 64 * 1024 };
+    /** 默认的池上限：256K */
+    private static final int DEFAULT_LIMIT = 256 * 1024;
+
+    private static final ByteArrayPool sDefault = new ByteArrayPool(
+            DEFAULT_LIMIT);
+
+    @SuppressWarnings("unchecked")
+    private final ArrayList<byte[]>[] mBuffers = new ArrayList[SIZE_CLASSES.length];
+    private final int mSizeLimit;
+    /** 池中闲置缓冲区的总大小 */
+    private int mCurrentSize;
+
+    private int hitCount;
+    private int missCount;
+    private long allocatedBytes;
+
+    /**
+     * @param sizeLimit
+     *            池中闲置缓冲区的总大小上限，单位：byte
+     */
+    public ByteArrayPool(int sizeLimit) {
+        mSizeLimit = sizeLimit;
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            mBuffers[i] = new ArrayList<byte[]>();
+        }
+    }
+
+    /**
+     * 全局共享的缓冲池，框架内的IO循环都使用这个实例
+     */
+    public static ByteArrayPool getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * 取出一个长度不小于len的缓冲区，用完后应调用{@link #returnBuf(byte[])}归还
+     */
+    public byte[] getBuf(int len) {
+        int index = classOf(len);
+        if (index < 0) {
+            synchronized (this) {
+                missCount++;
+                allocatedBytes += len;
+            }
+            return new byte[len];
+        }
+        synchronized (this) {
+            ArrayList<byte[]> list = mBuffers[index];
+            int size = list.size();
+            if (size > 0) {
+                byte[] buf = list.remove(size - 1);
+                mCurrentSize -= buf.length;
+                hitCount++;
+                return buf;
+            }
+            missCount++;
+            allocatedBytes += SIZE_CLASSES[index];
+        }
+        return new byte[SIZE_CLASSES[index]];
+    }
+
+    /**
+     * 归还一个由{@link #getBuf(int)}取出的缓冲区；其他来源或池已满时直接丢弃
+     */
+    public void returnBuf(byte[] buf) {
+        if (buf == null) {
+            return;
+        }
+        int index = classOf(buf.length);
+        if (index < 0 || SIZE_CLASSES[index] != buf.length) {
+            return;
+        }
+        synchronized (this) {
+            if (mCurrentSize + buf.length > mSizeLimit) {
+                return;
+            }
+            mBuffers[index].add(buf);
+            mCurrentSize += buf.length;
+        }
+    }
+
+    /**
+     * 清空池中所有闲置的缓冲区
+     */
+    public synchronized void clear() {
+        for (ArrayList<byte[]> list : mBuffers) {
+            list.clear();
+        }
+        mCurrentSize = 0;
+    }
+
+    /**
+     * 返回不小于len的最小一级的下标，超过最大一级返回-1
+     */
+    private static int classOf(int len) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (len <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 池中闲置缓冲区的总大小
+     */
+    public synchronized int size() {
+        return mCurrentSize;
+    }
+
+    public int maxSize() {
+        return mSizeLimit;
+    }
+
+    /**
+     * 从池中直接取到缓冲区的次数
+     */
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * 需要新分配缓冲区的次数
+     */
+    public synchronized int missCount() {
+        return missCount;
+    }
+
+    /**
+     * 因池中没有可用缓冲区而新分配的字节总数，可用于统计分配速率
+     */
+    public synchronized long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    @Override
+    public synchronized final String toString() {
+        int accesses = hitCount + missCount;
+        int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+        return String.format(
+                "ByteArrayPool[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%,allocated=%d]",
+                mCurrentSize, mSizeLimit, hitCount, missCount, hitPercent,
+                allocatedBytes);
+    }
+}
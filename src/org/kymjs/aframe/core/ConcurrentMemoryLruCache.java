@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2014, KJFrameForAndroid 张涛 (kymjs123@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kymjs.aframe.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 分段锁实现的LRU内存缓存，适用于多线程高并发读写的场景<br>
+ *
+ * <b>说明</b> 缓存被拆分为若干个segment，每个segment持有自己的锁与LRU链表，
+ * 不同segment上的get/put互不阻塞；缓存区大小按全局统计，超出maxSize时轮流从各segment的
+ * 链表头部淘汰，因此淘汰顺序是近似LRU的<br>
+ * <b>说明</b> sizeOf、entryRemoved、create三个扩展点与{@link MemoryLruCache}一致<br>
+ * <b>创建时间</b> 2014-10-20
+ *
+ * @author kymjs(kymjs123@gmail.com)
+ * @version 1.0
+ */
+public class ConcurrentMemoryLruCache<K, V> implements I_MemoryCache<K, V> {
+    /** 默认segment数量 */
+    private static final int DEFAULT_CONCURRENCY = 16;
+    private static final int MAX_CONCURRENCY = 1 << 8;
+
+    private final Segment<K, V>[] segments;
+    private final int segmentMask;
+
+    /** 当前缓存区已使用大小（全部segment之和） */
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile int maxSize;
+    /** 下一次淘汰开始的segment下标 */
+    private final AtomicInteger evictCursor = new AtomicInteger();
+
+    private final AtomicInteger putCount = new AtomicInteger();
+    private final AtomicInteger createCount = new AtomicInteger();
+    private final AtomicInteger evictionCount = new AtomicInteger();
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger missCount = new AtomicInteger();
+
+    /**
+     * @param maxSize
+     *            for caches that do not override {@link #sizeOf}, this is the
+     *            maximum number of entries in the cache. For all other caches,
+     *            this is the maximum sum of the sizes of the entries in this
+     *            cache.
+     */
+    public ConcurrentMemoryLruCache(int maxSize) {
+        this(maxSize, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * @param maxSize
+     *            缓存区最大值
+     * @param concurrencyLevel
+     *            预计的并发线程数，会被调整为不小于它的2的幂作为segment数量
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentMemoryLruCache(int maxSize, int concurrencyLevel) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("concurrencyLevel <= 0");
+        }
+        if (concurrencyLevel > MAX_CONCURRENCY) {
+            concurrencyLevel = MAX_CONCURRENCY;
+        }
+        int segmentCount = 1;
+        while (segmentCount < concurrencyLevel) {
+            segmentCount <<= 1;
+        }
+        this.maxSize = maxSize;
+        this.segmentMask = segmentCount - 1;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<K, V>();
+        }
+    }
+
+    /**
+     * 设置缓存区最大值
+     */
+    @Override
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * 根据key返回相应的value，如果存在或可以Create相应的value，否则返回null。如果一个value被返回，
+     * 这个value将被移动到所在segment的链表尾部
+     */
+    @Override
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        Segment<K, V> segment = segmentFor(key);
+        V mapValue;
+        synchronized (segment) {
+            mapValue = segment.map.get(key);
+        }
+        if (mapValue != null) {
+            hitCount.incrementAndGet();
+            return mapValue;
+        }
+        missCount.incrementAndGet();
+
+        V createdValue = create(key);
+        if (createdValue == null) {
+            return null;
+        }
+
+        int delta = 0;
+        synchronized (segment) {
+            createCount.incrementAndGet();
+            mapValue = segment.map.put(key, createdValue);
+            if (mapValue != null) {
+                // 产生了线程冲突，保留其他线程放入的value
+                segment.map.put(key, mapValue);
+            } else {
+                delta = safeSizeOf(key, createdValue);
+                segment.size += delta;
+            }
+        }
+
+        if (mapValue != null) {
+            entryRemoved(false, key, createdValue, mapValue);
+            return mapValue;
+        } else {
+            size.addAndGet(delta);
+            trimToSize(maxSize);
+            return createdValue;
+        }
+    }
+
+    /**
+     * put value，value会被保存在所在segment的链表尾部
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    @Override
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        Segment<K, V> segment = segmentFor(key);
+        V previous;
+        int delta;
+        synchronized (segment) {
+            delta = safeSizeOf(key, value);
+            previous = segment.map.put(key, value);
+            if (previous != null) {
+                delta -= safeSizeOf(key, previous);
+            }
+            segment.size += delta;
+        }
+        putCount.incrementAndGet();
+        size.addAndGet(delta);
+        if (previous != null) {
+            entryRemoved(false, key, previous, value);
+        }
+        trimToSize(maxSize);
+        return previous;
+    }
+
+    /**
+     * 如果key对应的value存在，则移除它
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    @Override
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        Segment<K, V> segment = segmentFor(key);
+        V previous;
+        int delta = 0;
+        synchronized (segment) {
+            previous = segment.map.remove(key);
+            if (previous != null) {
+                delta = safeSizeOf(key, previous);
+                segment.size -= delta;
+            }
+        }
+        if (previous != null) {
+            size.addAndGet(-delta);
+            entryRemoved(false, key, previous, null);
+        }
+        return previous;
+    }
+
+    /**
+     * 轮流从各segment的链表头部淘汰条目，直到全局大小不超过maxSize
+     *
+     * @param maxSize
+     *            the maximum size of the cache before returning. May be -1 to
+     *            evict even 0-sized elements.
+     */
+    private void trimToSize(int maxSize) {
+        int emptyInRow = 0;
+        while (size.get() > maxSize && emptyInRow < segments.length) {
+            Segment<K, V> segment = segments[evictCursor
+                    .getAndIncrement() & segmentMask];
+            K key = null;
+            V value = null;
+            int delta = 0;
+            synchronized (segment) {
+                Iterator<Map.Entry<K, V>> it = segment.map.entrySet()
+                        .iterator();
+                if (it.hasNext()) {
+                    Map.Entry<K, V> toEvict = it.next();
+                    key = toEvict.getKey();
+                    value = toEvict.getValue();
+                    it.remove();
+                    delta = safeSizeOf(key, value);
+                    segment.size -= delta;
+                } else if (segment.size != 0) {
+                    throw new IllegalStateException(getClass().getName()
+                            + ".sizeOf() is reporting inconsistent results!");
+                }
+            }
+            if (key == null) {
+                // 连续遍历完所有segment都为空，说明其他线程已经清空了缓存
+                emptyInRow++;
+                continue;
+            }
+            emptyInRow = 0;
+            size.addAndGet(-delta);
+            evictionCount.incrementAndGet();
+            entryRemoved(true, key, value, null);
+        }
+    }
+
+    private Segment<K, V> segmentFor(Object key) {
+        int h = key.hashCode();
+        // 打散hash的高位，避免低位相同的key落在同一个segment
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & segmentMask];
+    }
+
+    /**
+     * Called for entries that have been evicted or removed. This method is
+     * invoked when a value is evicted to make space, removed by a call to
+     * {@link #remove}, or replaced by a call to {@link #put}. The default
+     * implementation does nothing.
+     *
+     * <p>
+     * The method is called without synchronization: other threads may access
+     * the cache while this method is executing.
+     *
+     * @param evicted
+     *            true if the entry is being removed to make space, false if the
+     *            removal was caused by a {@link #put} or {@link #remove}.
+     * @param newValue
+     *            the new value for {@code key}, if it exists. If non-null, this
+     *            removal was caused by a {@link #put}. Otherwise it was caused
+     *            by an eviction or a {@link #remove}.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {}
+
+    /**
+     * Called after a cache miss to compute a value for the corresponding key.
+     * Returns the computed value or null if no value can be computed. The
+     * default implementation returns null.
+     *
+     * <p>
+     * The method is called without synchronization: other threads may access
+     * the cache while this method is executing.
+     */
+    protected V create(K key) {
+        return null;
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "="
+                    + value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in
+     * user-defined units. The default implementation returns 1 so that size is
+     * the number of entries and max size is the maximum number of entries.
+     *
+     * <p>
+     * An entry's size must not change while it is in the cache.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    @Override
+    public final void evictAll() {
+        trimToSize(-1); // -1 will evict 0-sized elements
+    }
+
+    @Override
+    public final int size() {
+        return size.get();
+    }
+
+    @Override
+    public final int maxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public final int hitCount() {
+        return hitCount.get();
+    }
+
+    @Override
+    public final int missCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of times {@link #create(Object)} returned a value.
+     */
+    public final int createCount() {
+        return createCount.get();
+    }
+
+    /**
+     * Returns the number of times {@link #put} was called.
+     */
+    public final int putCount() {
+        return putCount.get();
+    }
+
+    @Override
+    public final int evictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache. Entries are grouped
+     * by segment, each group is ordered from least recently accessed to most
+     * recently accessed.
+     */
+    @Override
+    public final Map<K, V> snapshot() {
+        Map<K, V> copy = new LinkedHashMap<K, V>();
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                copy.putAll(segment.map);
+            }
+        }
+        return copy;
+    }
+
+    @Override
+    public final String toString() {
+        int hits = hitCount.get();
+        int accesses = hits + missCount.get();
+        int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return String.format(
+                "ConcurrentLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                maxSize, hits, accesses - hits, hitPercent);
+    }
+
+    /**
+     * 一个segment，持有自己的LRU链表与已使用大小，所有访问都需要同步在segment对象上
+     */
+    private static final class Segment<K, V> {
+        final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(0,
+                0.75f, true);
+        int size;
+    }
+}
@@ -15,20 +15,39 @@
  */
 package org.kymjs.aframe.core;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.kymjs.aframe.utils.FileUtils;
 import org.kymjs.aframe.utils.LogUtils;
@@ -42,33 +61,61 @@ import android.os.Environment;
 import android.os.StatFs;
 
 /**
- * LRU算法实现的磁盘缓存器，只是一个简单版本的实现。 可以在ICS源代码中找到一个更强大和高效的磁盘LRU缓存解决方案
- * (libcore/luni/src/main/java/libcore/io/DiskLruCache.java). <br>
+ * LRU算法实现的磁盘缓存器，参考ICS源代码中的DiskLruCache
+ * (libcore/luni/src/main/java/libcore/io/DiskLruCache.java)实现了索引日志. <br>
  * 
- * <b>创建时间</b> 2014-7-16
+ * <b>说明</b> 缓存索引保存在缓存目录下的journal文件中，每次写入、删除、读取都会追加一行记录，
+ * 启动时顺序读取一次journal即可恢复LRU顺序与准确的缓存总大小；冗余记录过多时会自动压缩journal<br>
+ * <b>说明</b> 推荐使用put(String, byte[])保存原始数据，put(String, Bitmap)会把图片重新压缩，仅为兼容保留<br>
+ * <b>说明</b> 缓存文件先写入临时文件，写完后再重命名为正式文件，写入过程中崩溃不会留下损坏的缓存<br>
+ * <b>说明</b> 文件读写都在索引锁之外进行，不同key的读取互不阻塞；同一个key由分段读写锁保护<br>
+ * <b>创建时间</b> 2014-7-16<br>
+ * <b>修改时间</b> 2014-10-22
  * 
- * @version 1.0
+ * @version 1.1
  * @author kymjs(kymjs123@gmail.com)
  */
 public final class DiskCache {
     private boolean debug = false;
-    private static long maxSize;
+    private final long maxSize;
     // constant
     private static final String CACHE_FILENAME_PREFIX = "KJLibrary_";
-    private static final int MAX_REMOVALS = 4;
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String MAGIC = "KJLibrary.DiskCache";
+    private static final String VERSION = "1";
+    private static final String CLEAN = "CLEAN";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+    /** 冗余记录超过该值（且超过条目数）时压缩journal */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
     private static final int INITIAL_CAPACITY = 32;
     private static final float LOAD_FACTOR = 0.75f;
     private final File mFileDir;
+    private final File journalFile;
     private CompressFormat mCompressFormat = CompressFormat.PNG;
 
     private int cacheSize = 0;
-    private int cacheByteSize = 0;
+    private long cacheByteSize = 0;
     private final int maxCacheItemSize = 8192; // 8192 item default
     private int mCompressQuality = 70;
+    /** 不小于该大小的条目由getByteBuffer以内存映射方式返回，默认64K */
+    private volatile int mMapThreshold = 64 * 1024;
+
+    /** 按key分段的读写锁数量，必须是2的幂 */
+    private static final int KEY_LOCK_COUNT = 32;
+    /** 读文件持有读锁，重命名与删除文件持有写锁，防止读到写了一半的条目；必须先于索引锁获取 */
+    private final ReadWriteLock[] keyLocks = new ReadWriteLock[KEY_LOCK_COUNT];
+    private final AtomicInteger tempFileSeq = new AtomicInteger();
+
+    /** key与缓存文件大小的映射，按访问顺序排列，所有访问都需要同步在本对象上，只用于短暂的索引更新 */
+    private final LinkedHashMap<String, Long> mLinkedHashMap = new LinkedHashMap<String, Long>(
+            INITIAL_CAPACITY, LOAD_FACTOR, true);
+    private Writer journalWriter;
+    /** journal中已经没有意义的记录数 */
+    private int redundantOpCount;
 
-    private final Map<String, String> mLinkedHashMap = Collections
-            .synchronizedMap(new LinkedHashMap<String, String>(
-                    INITIAL_CAPACITY, LOAD_FACTOR, true));
     /** 用于标识缓存路径下哪些是需要的缓存文件(也就是Cache头部标识) */
     private static final FilenameFilter cacheFileFilter = new FilenameFilter() {
         @Override
@@ -87,64 +134,199 @@ public final class DiskCache {
 
     public DiskCache(String folderName, long maxByteSize,
             boolean isDebug) {
-        mFileDir = FileUtils.getSaveFolder(folderName);
+        this(FileUtils.getSaveFolder(folderName), maxByteSize, isDebug);
+    }
+
+    /**
+     * @param cacheDir
+     *            缓存目录
+     * @param maxByteSize
+     *            缓存总大小上限，单位：byte
+     * @param isDebug
+     *            是否打印调试信息
+     */
+    public DiskCache(File cacheDir, long maxByteSize, boolean isDebug) {
+        mFileDir = cacheDir;
+        mFileDir.mkdirs();
+        journalFile = new File(mFileDir, JOURNAL_FILE);
         maxSize = maxByteSize;
         debug = isDebug;
+        for (int i = 0; i < KEY_LOCK_COUNT; i++) {
+            keyLocks[i] = new ReentrantReadWriteLock();
+        }
+        synchronized (mLinkedHashMap) {
+            initJournal();
+        }
+        trimToSize();
     }
 
     /*********************************************************************/
 
     /**
-     * 将bitmap写入文件缓存，然后再put
+     * 将bitmap写入文件缓存，然后再put<br>
+     * <b>注意：</b>bitmap会按setCompressParams设置的格式重新压缩，如果有原始数据应使用put(String, byte[])
      * 
      * @param key
      * @param data
      */
     public void put(String key, Bitmap data) {
-        synchronized (mLinkedHashMap) {
-            if (mLinkedHashMap.get(key) == null) {
-                try {
-                    final String file = createFilePath(mFileDir, key);
-                    if (writeBitmapToFile(data, file)) { // 如果成功将图片写入文件
-                        put(key, file);
-                        debug("put - Added cache file, " + file);
-                        flushCache();
-                    }
-                } catch (final FileNotFoundException e) {
-                    debug("Error in put: " + e.getMessage());
-                } catch (final IOException e) {
-                    debug("Error in put: " + e.getMessage());
-                }
+        if (containsKey(key)) {
+            return;
+        }
+        final String file = createFilePath(mFileDir, key);
+        final File tmp = createTempFile(file);
+        try {
+            if (writeBitmapToFile(data, tmp) // 如果成功将图片写入文件
+                    && commit(key, tmp, new File(file))) {
+                debug("put - Added cache file, " + file);
+                trimToSize();
             }
+        } catch (final IOException e) {
+            debug("Error in put: " + e.getMessage());
+        } finally {
+            tmp.delete();
         }
     }
 
-    private void put(String key, String file) {
-        mLinkedHashMap.put(key, file);
-        cacheSize = mLinkedHashMap.size();
-        cacheByteSize += new File(file).length();
+    /**
+     * 将原始数据写入文件缓存，已存在的缓存会被替换
+     * 
+     * @param key
+     * @param data
+     *            原始数据，例如从网络下载到的图片字节
+     */
+    public void put(String key, byte[] data) {
+        if (data != null) {
+            put(key, new ByteArrayInputStream(data));
+        }
+    }
+
+    /**
+     * 将输入流中的全部数据写入文件缓存，已存在的缓存会被替换；本方法不会关闭输入流
+     * 
+     * @param key
+     * @param in
+     *            数据来源
+     * @return 是否写入成功
+     */
+    public boolean put(String key, InputStream in) {
+        if (in == null) {
+            return false;
+        }
+        final String file = createFilePath(mFileDir, key);
+        final File tmp = createTempFile(file);
+        try {
+            writeStreamToFile(in, tmp);
+            if (commit(key, tmp, new File(file))) {
+                debug("put - Added cache file, " + file);
+                trimToSize();
+                return true;
+            }
+        } catch (final IOException e) {
+            debug("Error in put: " + e.getMessage());
+        } finally {
+            tmp.delete();
+        }
+        return false;
+    }
+
+    /**
+     * 每次写入使用各自的临时文件，同一个key的并发写入互不干扰
+     */
+    private File createTempFile(String file) {
+        return new File(file + '.' + tempFileSeq.incrementAndGet()
+                + TEMP_FILE_SUFFIX);
     }
 
     /**
-     * 刷新缓存，当前Cache占用空间超过了最大空间，从最少使用的entry开始删除，直到占用空间小于标准
+     * 持有key的写锁，将写好的临时文件重命名为正式缓存文件，并在journal中记录
+     * 
+     * @return 是否成功
      */
-    private void flushCache() {
-        Entry<String, String> eldestEntry;
-        File eldestFile;
-        long eldestFileSize;
-        int count = 0;
-        while (count < MAX_REMOVALS
-                && (cacheSize > maxCacheItemSize || cacheByteSize > maxSize)) {
-            eldestEntry = mLinkedHashMap.entrySet().iterator().next();
-            eldestFile = new File(eldestEntry.getValue());
-            eldestFileSize = eldestFile.length();
-            mLinkedHashMap.remove(eldestEntry.getKey());
-            eldestFile.delete();
-            cacheSize = mLinkedHashMap.size();
-            cacheByteSize -= eldestFileSize;
-            count++;
-            debug("flushCache - Removed cache file, " + eldestFile
-                    + ", " + eldestFileSize);
+    private boolean commit(String key, File tmp, File file) {
+        Lock lock = lockFor(key).writeLock();
+        lock.lock();
+        try {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                debug("Error in put: rename failed, " + tmp);
+                return false;
+            }
+            long length = file.length();
+            synchronized (mLinkedHashMap) {
+                Long previous = mLinkedHashMap.put(key, length);
+                if (previous != null) {
+                    cacheByteSize -= previous;
+                    redundantOpCount++;
+                }
+                cacheSize = mLinkedHashMap.size();
+                cacheByteSize += length;
+                try {
+                    writeJournalLine(CLEAN, key, length, true);
+                } catch (IOException e) {
+                    debug("Error in journal: " + e.getMessage());
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 刷新缓存，当前Cache占用空间超过了最大空间，从最少使用的entry开始删除，直到占用空间小于标准<br>
+     * <b>注意：</b>调用时不能持有任何锁：先在索引锁内摘除条目，再逐个持有key的写锁删除文件
+     */
+    private void trimToSize() {
+        List<String> evicted = null;
+        synchronized (mLinkedHashMap) {
+            Iterator<Entry<String, Long>> it = mLinkedHashMap.entrySet()
+                    .iterator();
+            while ((cacheSize > maxCacheItemSize || cacheByteSize > maxSize)
+                    && it.hasNext()) {
+                Entry<String, Long> eldestEntry = it.next();
+                String key = eldestEntry.getKey();
+                it.remove();
+                cacheSize = mLinkedHashMap.size();
+                cacheByteSize -= eldestEntry.getValue();
+                redundantOpCount++;
+                if (evicted == null) {
+                    evicted = new ArrayList<String>();
+                }
+                evicted.add(key);
+                try {
+                    writeJournalLine(REMOVE, key, 0, false);
+                } catch (IOException e) {
+                    debug("Error in journal: " + e.getMessage());
+                }
+            }
+            try {
+                if (journalWriter != null) {
+                    journalWriter.flush();
+                }
+                compactJournalIfNeeded();
+            } catch (IOException e) {
+                debug("Error in journal: " + e.getMessage());
+            }
+        }
+        if (evicted == null) {
+            return;
+        }
+        for (String key : evicted) {
+            Lock lock = lockFor(key).writeLock();
+            lock.lock();
+            try {
+                synchronized (mLinkedHashMap) {
+                    if (mLinkedHashMap.containsKey(key)) {
+                        continue; // 摘除之后又被重新写入了
+                    }
+                }
+                File eldestFile = new File(createFilePath(mFileDir, key));
+                eldestFile.delete();
+                debug("flushCache - Removed cache file, " + eldestFile);
+            } finally {
+                lock.unlock();
+            }
         }
     }
 
@@ -154,21 +336,17 @@ public final class DiskCache {
      * @return The bitmap or null if not found
      */
     public Bitmap get(String key) {
-        synchronized (mLinkedHashMap) {
-            final String file = mLinkedHashMap.get(key);
+        Lock lock = lockFor(key).readLock();
+        lock.lock();
+        try {
+            final String file = lookup(key);
             if (file != null) {
                 debug("Disk cache hit");
                 return BitmapFactory.decodeFile(file);
-            } else {
-                final String existingFile = createFilePath(mFileDir,
-                        key);
-                if (new File(existingFile).exists()) {
-                    put(key, existingFile);
-                    debug("Disk cache hit (existing file)");
-                    return BitmapFactory.decodeFile(existingFile);
-                }
             }
             return null;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -178,39 +356,100 @@ public final class DiskCache {
      * @return The bitmap or null if not found
      */
     public byte[] getByteArray(String key) {
-        synchronized (mLinkedHashMap) {
-            final String file = mLinkedHashMap.get(key);
-            byte[] data = null;
-            FileInputStream fis = null;
+        Lock lock = lockFor(key).readLock();
+        lock.lock();
+        try {
+            final String file = lookup(key);
             if (file != null) {
                 debug("Disk cache hit");
-                try {
-                    fis = new FileInputStream(file);
-                } catch (FileNotFoundException e) {
-                    fis = null;
-                    e.printStackTrace();
-                }
-                data = FileUtils.input2byte(fis);
-            } else {
-                final String existingFile = createFilePath(mFileDir,
-                        key);
-                if (new File(existingFile).exists()) {
-                    put(key, existingFile);
-                    debug("Disk cache hit (existing file)");
-                    try {
-                        fis = new FileInputStream(existingFile);
-                    } catch (FileNotFoundException e) {
-                        e.printStackTrace();
-                        fis = null;
-                    }
-                    data = FileUtils.input2byte(fis);
-                }
+                // 按文件长度一次读入，不经过中间缓冲区
+                return FileUtils.file2byte(new File(file));
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从缓存读取数据：小于映射阈值的条目读入java堆，否则以只读的MappedByteBuffer返回，避免在堆中复制大文件
+     * 
+     * @see #setMapThreshold(int)
+     * @return 没有对应的缓存则返回null
+     */
+    public ByteBuffer getByteBuffer(String key) {
+        Lock lock = lockFor(key).readLock();
+        lock.lock();
+        try {
+            final String file = lookup(key);
+            if (file == null) {
+                return null;
             }
-            FileUtils.closeIO(fis);
-            return data;
+            debug("Disk cache hit");
+            File f = new File(file);
+            if (f.length() >= mMapThreshold) {
+                // 映射建立后，文件被替换或删除都不影响已映射的内容
+                return FileUtils.mapFile(f);
+            }
+            byte[] data = FileUtils.file2byte(f);
+            return data == null ? null : ByteBuffer.wrap(data);
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * 打开key对应缓存文件的输入流，调用者负责关闭
+     * 
+     * @return 没有对应的缓存则返回null
+     */
+    public InputStream getInputStream(String key) {
+        // 文件一旦打开，之后的替换与删除都不会影响已打开的流，所以只需在打开时持有读锁
+        Lock lock = lockFor(key).readLock();
+        lock.lock();
+        try {
+            final String file = lookup(key);
+            if (file != null) {
+                debug("Disk cache hit");
+                return new BufferedInputStream(new FileInputStream(file),
+                        IO_BUFFER_SIZE);
+            }
+        } catch (FileNotFoundException e) {
+            debug("Error in getInputStream: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+        return null;
+    }
+
+    /**
+     * 在索引中查找key对应的缓存文件并记录一次访问，只在这期间持有索引锁
+     * 
+     * @return 缓存文件路径，没有则返回null
+     */
+    private String lookup(String key) {
+        synchronized (mLinkedHashMap) {
+            if (mLinkedHashMap.get(key) == null) {
+                return null;
+            }
+            try {
+                redundantOpCount++;
+                writeJournalLine(READ, key, 0, false);
+                compactJournalIfNeeded();
+            } catch (IOException e) {
+                debug("Error in journal: " + e.getMessage());
+            }
+        }
+        return createFilePath(mFileDir, key);
+    }
+
+    private ReadWriteLock lockFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return keyLocks[h & (KEY_LOCK_COUNT - 1)];
+    }
+
     /**
      * 检测key是否有对应的value存在
      * 
@@ -219,25 +458,310 @@ public final class DiskCache {
      * @return true if found, false otherwise
      */
     public boolean containsKey(String key) {
-        if (mLinkedHashMap.containsKey(key)) {
-            return true;
-        }
-
-        // 检测key是否对应一个实际的文件
-        final String existingFile = createFilePath(mFileDir, key);
-        if (new File(existingFile).exists()) {
-            // 如果找到key对应的实际文件，则加入map
-            put(key, existingFile);
-            return true;
+        synchronized (mLinkedHashMap) {
+            return mLinkedHashMap.containsKey(key);
         }
-        return false;
     }
 
     /**
      * 清楚全部缓存
      */
     public void clearCache() {
-        clearCache(mFileDir);
+        // 按固定顺序持有全部key的写锁，保证没有正在进行的读写
+        for (ReadWriteLock lock : keyLocks) {
+            lock.writeLock().lock();
+        }
+        try {
+            synchronized (mLinkedHashMap) {
+                clearCache(mFileDir);
+                mLinkedHashMap.clear();
+                cacheSize = 0;
+                cacheByteSize = 0;
+                try {
+                    rebuildJournal();
+                } catch (IOException e) {
+                    debug("Error in clearCache: " + e.getMessage());
+                }
+            }
+        } finally {
+            for (ReadWriteLock lock : keyLocks) {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * 缓存文件的总大小，单位：byte
+     */
+    public long getCacheByteSize() {
+        synchronized (mLinkedHashMap) {
+            return cacheByteSize;
+        }
+    }
+
+    /**
+     * 将journal中未写出的记录刷到磁盘
+     */
+    public void flush() {
+        synchronized (mLinkedHashMap) {
+            try {
+                if (journalWriter != null) {
+                    journalWriter.flush();
+                }
+            } catch (IOException e) {
+                debug("Error in flush: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 关闭journal，关闭后本对象不应再被使用
+     */
+    public void close() {
+        synchronized (mLinkedHashMap) {
+            FileUtils.closeIO(journalWriter);
+            journalWriter = null;
+        }
+    }
+
+    /******************************* journal ************************************/
+
+    /**
+     * 读取journal恢复索引；journal不存在或已损坏时，扫描缓存目录重建索引
+     */
+    private void initJournal() {
+        deleteTempFiles();
+        boolean needRebuild = true;
+        if (journalFile.exists()) {
+            try {
+                needRebuild = readJournal();
+            } catch (IOException e) {
+                debug("journal is corrupt, rebuild it: " + e.getMessage());
+                mLinkedHashMap.clear();
+            }
+        }
+        if (mLinkedHashMap.isEmpty() && needRebuild) {
+            scanCacheDir();
+        }
+        deleteUnindexedFiles();
+        recountSize();
+        try {
+            if (needRebuild) {
+                rebuildJournal();
+            } else {
+                journalWriter = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(journalFile, true), "UTF-8"),
+                        IO_BUFFER_SIZE);
+            }
+        } catch (IOException e) {
+            debug("Error in initJournal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 顺序读取journal
+     * 
+     * @return journal末尾是否有不完整的记录（需要重写journal）
+     */
+    private boolean readJournal() throws IOException {
+        BufferedReader reader = null;
+        boolean truncated = false;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(journalFile), "UTF-8"),
+                    IO_BUFFER_SIZE);
+            if (!MAGIC.equals(reader.readLine())
+                    || !VERSION.equals(reader.readLine())
+                    || !"".equals(reader.readLine())) {
+                throw new IOException("unexpected journal header");
+            }
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineCount++;
+                if (!readJournalLine(line)) {
+                    // 只可能是写入过程中崩溃留下的最后一行
+                    truncated = true;
+                    break;
+                }
+            }
+            redundantOpCount = lineCount - mLinkedHashMap.size();
+        } finally {
+            FileUtils.closeIO(reader);
+        }
+        // 丢弃文件已经不存在的条目
+        Iterator<Entry<String, Long>> it = mLinkedHashMap.entrySet()
+                .iterator();
+        while (it.hasNext()) {
+            if (!new File(createFilePath(mFileDir, it.next().getKey()))
+                    .exists()) {
+                it.remove();
+                truncated = true;
+            }
+        }
+        return truncated;
+    }
+
+    /**
+     * @return 记录格式是否正确
+     */
+    private boolean readJournalLine(String line) {
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            return false;
+        }
+        String key;
+        try {
+            key = URLDecoder.decode(parts[1], "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return false;
+        }
+        if (CLEAN.equals(parts[0]) && parts.length == 3) {
+            try {
+                mLinkedHashMap.put(key, Long.parseLong(parts[2]));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        } else if (REMOVE.equals(parts[0]) && parts.length == 2) {
+            mLinkedHashMap.remove(key);
+        } else if (READ.equals(parts[0]) && parts.length == 2) {
+            mLinkedHashMap.get(key); // 仅调整访问顺序
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 没有journal时（例如从旧版本升级），按文件修改时间扫描一次缓存目录
+     */
+    private void scanCacheDir() {
+        File[] files = mFileDir.listFiles(cacheFileFilter);
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified(), r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName().substring(
+                    CACHE_FILENAME_PREFIX.length());
+            try {
+                mLinkedHashMap.put(URLDecoder.decode(name, "UTF-8"),
+                        file.length());
+            } catch (UnsupportedEncodingException e) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 删除不在索引中的缓存文件：commit()改名后、写入CLEAN前崩溃，或trimToSize写入REMOVE后、
+     * 删除文件前崩溃时会留下这样的文件，它们不会被淘汰，大小也不计入缓存总大小
+     */
+    private void deleteUnindexedFiles() {
+        File[] files = mFileDir.listFiles(cacheFileFilter);
+        if (files == null) {
+            return;
+        }
+        Set<String> indexed = new HashSet<String>();
+        for (String key : mLinkedHashMap.keySet()) {
+            indexed.add(new File(createFilePath(mFileDir, key)).getName());
+        }
+        for (File file : files) {
+            if (!indexed.contains(file.getName()) && file.delete()) {
+                debug("delete unindexed cache file, " + file);
+            }
+        }
+    }
+
+    private void recountSize() {
+        cacheByteSize = 0;
+        for (Long length : mLinkedHashMap.values()) {
+            cacheByteSize += length;
+        }
+        cacheSize = mLinkedHashMap.size();
+    }
+
+    /**
+     * 删除上次崩溃时没有写完的临时文件
+     */
+    private void deleteTempFiles() {
+        File[] files = mFileDir.listFiles(cacheFileFilter);
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                file.delete();
+            }
+        }
+        new File(mFileDir, JOURNAL_FILE_TMP).delete();
+    }
+
+    private void compactJournalIfNeeded() throws IOException {
+        if (redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && redundantOpCount >= mLinkedHashMap.size()) {
+            rebuildJournal();
+        }
+    }
+
+    /**
+     * 按当前索引重写一份最精简的journal，先写临时文件再重命名，保证任何时刻都有一份完整的journal
+     */
+    private void rebuildJournal() throws IOException {
+        FileUtils.closeIO(journalWriter);
+        journalWriter = null;
+        File tmp = new File(mFileDir, JOURNAL_FILE_TMP);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmp), "UTF-8"), IO_BUFFER_SIZE);
+        try {
+            writer.write(MAGIC + "\n" + VERSION + "\n\n");
+            for (Entry<String, Long> entry : mLinkedHashMap.entrySet()) {
+                writer.write(CLEAN + ' ' + encodeKey(entry.getKey())
+                        + ' ' + entry.getValue() + '\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(journalFile)) {
+            journalFile.delete();
+            if (!tmp.renameTo(journalFile)) {
+                throw new IOException("rename journal failed");
+            }
+        }
+        redundantOpCount = 0;
+        journalWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(journalFile, true), "UTF-8"),
+                IO_BUFFER_SIZE);
+    }
+
+    private void writeJournalLine(String op, String key, long length,
+            boolean flush) throws IOException {
+        if (journalWriter == null) {
+            return;
+        }
+        StringBuilder line = new StringBuilder(op).append(' ').append(
+                encodeKey(key));
+        if (CLEAN.equals(op)) {
+            line.append(' ').append(length);
+        }
+        journalWriter.write(line.append('\n').toString());
+        if (flush) {
+            journalWriter.flush();
+        }
+    }
+
+    private static String encodeKey(String key) {
+        try {
+            return URLEncoder.encode(key, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new KJException(e);
+        }
     }
 
     /**
@@ -334,10 +858,20 @@ public final class DiskCache {
         mCompressQuality = quality;
     }
 
+    /**
+     * 设置getByteBuffer使用内存映射的文件大小阈值
+     * 
+     * @param threshold
+     *            单位：byte，不小于该值的缓存文件以MappedByteBuffer返回
+     */
+    public void setMapThreshold(int threshold) {
+        mMapThreshold = threshold;
+    }
+
     /**
      * 图片写入文件
      */
-    private boolean writeBitmapToFile(Bitmap bitmap, String file)
+    private boolean writeBitmapToFile(Bitmap bitmap, File file)
             throws IOException, FileNotFoundException {
         if (bitmap == null)
             return false;
@@ -354,6 +888,31 @@ public final class DiskCache {
         }
     }
 
+    /**
+     * 输入流写入文件
+     */
+    private void writeStreamToFile(InputStream in, File file)
+            throws IOException {
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            byte[] buffer = ByteArrayPool.getDefault().getBuf(
+                    IO_BUFFER_SIZE);
+            try {
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, len);
+                }
+            } finally {
+                ByteArrayPool.getDefault().returnBuf(buffer);
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
     /******************* 替换原DiskLruCache.jar中Utils.java的函数 ********************/
     private static final int IO_BUFFER_SIZE = 8 * 1024;
 
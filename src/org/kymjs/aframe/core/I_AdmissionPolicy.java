@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2014, KJFrameForAndroid 张涛 (kymjs123@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kymjs.aframe.core;
+
+/**
+ * 内存缓存准入策略的规范接口协议<br>
+ *
+ * <b>说明</b> 设置了准入策略的{@link MemoryLruCache}会先把新条目放入一个很小的LRU窗口，
+ * 条目离开窗口时由本策略决定它能否顶替主缓存区中最近最少使用的条目<br>
+ * <b>说明</b> 所有方法都在缓存的锁内调用，实现类无需自己做同步<br>
+ * <b>创建时间</b> 2014-10-21
+ *
+ * @author kymjs(kymjs123@gmail.com)
+ * @version 1.0
+ */
+public interface I_AdmissionPolicy<K> {
+
+    /**
+     * 记录一次对key的访问（包括命中与未命中）
+     */
+    void record(K key);
+
+    /**
+     * 判断候选条目能否进入主缓存区
+     *
+     * @param candidate
+     *            刚离开窗口的条目
+     * @param victim
+     *            主缓存区中将被淘汰的条目
+     * @return true则淘汰victim，false则淘汰candidate
+     */
+    boolean admit(K candidate, K victim);
+}
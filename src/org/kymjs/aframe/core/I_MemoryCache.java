@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2014, KJFrameForAndroid 张涛 (kymjs123@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kymjs.aframe.core;
+
+import java.util.Map;
+
+/**
+ * 内存缓存池的规范接口协议，{@link MemoryLruCache}与{@link ConcurrentMemoryLruCache}
+ * 均实现了本协议，使用者可以按需切换<br>
+ *
+ * <b>创建时间</b> 2014-10-20
+ *
+ * @author kymjs(kymjs123@gmail.com)
+ * @version 1.0
+ */
+public interface I_MemoryCache<K, V> {
+
+    /**
+     * 根据key返回相应的value，没有则返回null
+     */
+    V get(K key);
+
+    /**
+     * 添加一个缓存
+     *
+     * @return key之前对应的value
+     */
+    V put(K key, V value);
+
+    /**
+     * 移除key对应的缓存
+     *
+     * @return key之前对应的value
+     */
+    V remove(K key);
+
+    /**
+     * 设置缓存区最大值
+     */
+    void resize(int maxSize);
+
+    /**
+     * 清空缓存
+     */
+    void evictAll();
+
+    /**
+     * 当前缓存区已使用大小
+     */
+    int size();
+
+    /**
+     * 缓存区最大值
+     */
+    int maxSize();
+
+    /**
+     * get命中的次数
+     */
+    int hitCount();
+
+    /**
+     * get未命中的次数
+     */
+    int missCount();
+
+    /**
+     * 被淘汰的条目数
+     */
+    int evictionCount();
+
+    /**
+     * 返回当前缓存内容的一份拷贝
+     */
+    Map<K, V> snapshot();
+}
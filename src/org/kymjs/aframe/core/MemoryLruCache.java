@@ -15,6 +15,8 @@
  */
 package org.kymjs.aframe.core;
 
+import java.util.AbstractMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -27,14 +29,23 @@ import java.util.Map;
  * @author Android Open Source Project
  * @version 1.0
  */
-public class MemoryLruCache<K, V> {
+public class MemoryLruCache<K, V> implements I_MemoryCache<K, V> {
     // LinkedHashMap与 HashMap 的不同之处在于维护着一个运行于所有条目的双向链表。
     // 每次put的value都是放在链表的头部
     private final LinkedHashMap<K, V> map;
+    /** 准入窗口，仅在设置了准入策略时使用：新条目先进入窗口，离开窗口时再由准入策略决定去留 */
+    private final LinkedHashMap<K, V> window;
+    /** 准入策略，为null时即普通的LRU缓存 */
+    private final I_AdmissionPolicy<K> admission;
 
-    /** 当前缓存区已使用大小 */
+    /** 当前缓存区已使用大小（包含准入窗口） */
     private int size;
     private int maxSize;
+    /** 低水位：超出maxSize时一次性淘汰到该大小，避免每次put都触发淘汰 */
+    private int lowWaterSize;
+    /** 准入窗口已使用大小 */
+    private int windowSize;
+    private int windowMaxSize;
 
     private int putCount;
     private int createCount;
@@ -42,6 +53,9 @@ public class MemoryLruCache<K, V> {
     private int hitCount;
     private int missCount;
 
+    /** 准入窗口占缓存区的百分比 */
+    private static final int WINDOW_PERCENT = 1;
+
     /**
      * @param maxSize
      *            for caches that do not override {@link #sizeOf}, this is the
@@ -50,11 +64,56 @@ public class MemoryLruCache<K, V> {
      *            cache.
      */
     public MemoryLruCache(int maxSize) {
+        this(maxSize, maxSize, null);
+    }
+
+    /**
+     * @param maxSize
+     *            缓存区最大值
+     * @param lowWaterSize
+     *            低水位，当缓存区超过maxSize时，会批量淘汰最近最少使用的条目直到不大于该值
+     */
+    public MemoryLruCache(int maxSize, int lowWaterSize) {
+        this(maxSize, lowWaterSize, null);
+    }
+
+    /**
+     * @param maxSize
+     *            缓存区最大值
+     * @param admission
+     *            准入策略，例如{@link TinyLfuAdmission}；为null时即普通LRU
+     */
+    public MemoryLruCache(int maxSize, I_AdmissionPolicy<K> admission) {
+        this(maxSize, maxSize, admission);
+    }
+
+    /**
+     * @param maxSize
+     *            缓存区最大值
+     * @param lowWaterSize
+     *            低水位，当缓存区超过maxSize时，会批量淘汰条目直到不大于该值
+     * @param admission
+     *            准入策略，例如{@link TinyLfuAdmission}；为null时即普通LRU
+     */
+    public MemoryLruCache(int maxSize, int lowWaterSize,
+            I_AdmissionPolicy<K> admission) {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
+        if (lowWaterSize <= 0 || lowWaterSize > maxSize) {
+            throw new IllegalArgumentException(
+                    "lowWaterSize <= 0 || lowWaterSize > maxSize");
+        }
         this.maxSize = maxSize;
+        this.lowWaterSize = lowWaterSize;
+        this.windowMaxSize = windowMaxSizeOf(maxSize);
+        this.admission = admission;
         this.map = new LinkedHashMap<K, V>(0, 0.75f, true);
+        this.window = new LinkedHashMap<K, V>(0, 0.75f, true);
+    }
+
+    private static int windowMaxSizeOf(int maxSize) {
+        return Math.max(1, maxSize * WINDOW_PERCENT / 100);
     }
 
     /**
@@ -69,10 +128,30 @@ public class MemoryLruCache<K, V> {
         }
         synchronized (this) {
             this.maxSize = maxSize;
+            this.windowMaxSize = windowMaxSizeOf(maxSize);
+            if (lowWaterSize > maxSize) {
+                lowWaterSize = maxSize;
+            }
         }
         trimToSize(maxSize);
     }
 
+    /**
+     * 设置低水位，超过缓存区最大值时将批量淘汰到该大小
+     * 
+     * @param lowWaterSize
+     *            不大于maxSize的正数，等于maxSize时每次只淘汰到刚好不超出
+     */
+    public void setLowWaterSize(int lowWaterSize) {
+        synchronized (this) {
+            if (lowWaterSize <= 0 || lowWaterSize > maxSize) {
+                throw new IllegalArgumentException(
+                        "lowWaterSize <= 0 || lowWaterSize > maxSize");
+            }
+            this.lowWaterSize = lowWaterSize;
+        }
+    }
+
     /**
      * 根据key返回相应的value，如果存在或可以Create相应的value，否则返回null。如果一个value被返回，
      * 这个value将被移动到list首部
@@ -84,7 +163,15 @@ public class MemoryLruCache<K, V> {
 
         V mapValue;
         synchronized (this) {
-            mapValue = map.get(key);
+            if (admission != null) {
+                admission.record(key);
+                mapValue = window.get(key);
+                if (mapValue == null) {
+                    mapValue = map.get(key);
+                }
+            } else {
+                mapValue = map.get(key);
+            }
             if (mapValue != null) {
                 hitCount++;
                 return mapValue;
@@ -105,13 +192,10 @@ public class MemoryLruCache<K, V> {
 
         synchronized (this) {
             createCount++;
-            mapValue = map.put(key, createdValue);
-
+            mapValue = putInternal(key, createdValue);
             if (mapValue != null) {
-                // 如果为null表示产生了线程冲突，重新执行最后一次put
-                map.put(key, mapValue);
-            } else {
-                size += safeSizeOf(key, createdValue);
+                // 如果不为null表示产生了线程冲突，重新执行最后一次put
+                putInternal(key, mapValue);
             }
         }
 
@@ -119,7 +203,7 @@ public class MemoryLruCache<K, V> {
             entryRemoved(false, key, createdValue, mapValue);
             return mapValue;
         } else {
-            trimToSize(maxSize);
+            trimToLowWater();
             return createdValue;
         }
     }
@@ -137,55 +221,179 @@ public class MemoryLruCache<K, V> {
         V previous;
         synchronized (this) {
             putCount++;
-            size += safeSizeOf(key, value);
-            previous = map.put(key, value);
-            if (previous != null) {
-                size -= safeSizeOf(key, previous);
+            if (admission != null) {
+                admission.record(key);
             }
+            previous = putInternal(key, value);
         }
         if (previous != null) {
             entryRemoved(false, key, previous, value);
         }
-        trimToSize(maxSize);
+        trimToLowWater();
+        return previous;
+    }
+
+    /**
+     * 放入一个条目并更新已使用大小，调用者必须持有锁。设置了准入策略时，新条目进入准入窗口
+     */
+    private V putInternal(K key, V value) {
+        int valueSize = safeSizeOf(key, value);
+        V previous;
+        if (admission != null && !map.containsKey(key)) {
+            previous = window.put(key, value);
+            windowSize += valueSize;
+            if (previous != null) {
+                windowSize -= safeSizeOf(key, previous);
+            }
+        } else {
+            previous = map.put(key, value);
+        }
+        size += valueSize;
+        if (previous != null) {
+            size -= safeSizeOf(key, previous);
+        }
         return previous;
     }
 
+    /**
+     * 超出缓存区最大值时，批量淘汰到低水位
+     */
+    private void trimToLowWater() {
+        int max, target;
+        synchronized (this) {
+            max = maxSize;
+            target = lowWaterSize;
+        }
+        trimToSize(max, target);
+    }
+
     /**
      * @param maxSize
      *            the maximum size of the cache before returning. May be -1 to
      *            evict even 0-sized elements.
      */
     private void trimToSize(int maxSize) {
-        while (true) {
-            K key;
-            V value;
-            synchronized (this) {
-                if (size < 0 || (map.isEmpty() && size != 0)) {
-                    throw new IllegalStateException(getClass().getName()
-                            + ".sizeOf() is reporting inconsistent results!");
-                }
-
-                if (size <= maxSize) {
-                    break;
-                }
+        trimToSize(maxSize, maxSize);
+    }
 
-                Map.Entry<K, V> toEvict = null;
-                for (Map.Entry<K, V> entry : map.entrySet()) {
-                    toEvict = entry;
+    /**
+     * 从链表头部（最近最少使用端）开始淘汰，每个条目的淘汰都是O(1)的<br>
+     * 设置了准入策略时，准入窗口超出大小的部分会与主缓存区的淘汰者比较访问频率，败者被淘汰
+     * 
+     * @param maxSize
+     *            缓存区大小超过该值时才开始淘汰
+     * @param targetSize
+     *            淘汰结束后缓存区的大小上限，May be -1 to evict even 0-sized elements.
+     */
+    private void trimToSize(int maxSize, int targetSize) {
+        Map<K, V> evicted = null;
+        synchronized (this) {
+            checkSize();
+            if (size > maxSize) {
+                while (size > targetSize) {
+                    Map.Entry<K, V> toEvict = evictOne(targetSize >= 0);
+                    if (toEvict == null) {
+                        break;
+                    }
+                    evictionCount++;
+                    if (evicted == null) {
+                        evicted = new LinkedHashMap<K, V>();
+                    }
+                    evicted.put(toEvict.getKey(), toEvict.getValue());
                 }
+            }
+            // 没有淘汰压力时，超出窗口大小的条目直接进入主缓存区
+            while (admission != null && windowSize > windowMaxSize
+                    && !window.isEmpty()) {
+                Map.Entry<K, V> candidate = eldest(window);
+                moveToMain(candidate.getKey(), candidate.getValue());
+            }
+            checkSize();
+        }
 
-                if (toEvict == null) {
-                    break;
-                }
+        // 回调在锁外执行，与remove()、put()的行为保持一致
+        if (evicted != null) {
+            for (Map.Entry<K, V> entry : evicted.entrySet()) {
+                entryRemoved(true, entry.getKey(), entry.getValue(), null);
+            }
+        }
+    }
 
-                key = toEvict.getKey();
-                value = toEvict.getValue();
-                map.remove(key);
-                size -= safeSizeOf(key, value);
-                evictionCount++;
+    /**
+     * 淘汰一个条目，调用者必须持有锁
+     * 
+     * @param useAdmission
+     *            是否使用准入策略做比较，清空缓存时不需要
+     * @return 被淘汰的条目，没有可淘汰的条目时返回null
+     */
+    private Map.Entry<K, V> evictOne(boolean useAdmission) {
+        Map.Entry<K, V> victim = eldest(map);
+        Map.Entry<K, V> candidate = null;
+        if (admission != null && useAdmission
+                && windowSize > windowMaxSize) {
+            candidate = eldest(window);
+        }
+        while (candidate != null) {
+            if (victim != null
+                    && !admission.admit(candidate.getKey(),
+                            victim.getKey())) {
+                // 候选者访问频率不够，直接淘汰候选者
+                removeEntry(window, candidate);
+                return candidate;
+            }
+            // 候选者胜出，进入主缓存区
+            moveToMain(candidate.getKey(), candidate.getValue());
+            candidate = windowSize > windowMaxSize ? eldest(window) : null;
+        }
+        if (victim == null) {
+            victim = eldest(map);
+        }
+        if (victim == null) {
+            victim = eldest(window);
+            if (victim == null) {
+                return null;
             }
+            removeEntry(window, victim);
+        } else {
+            removeEntry(map, victim);
+        }
+        return victim;
+    }
+
+    private void moveToMain(K key, V value) {
+        window.remove(key);
+        windowSize -= safeSizeOf(key, value);
+        map.put(key, value);
+    }
+
+    private void removeEntry(LinkedHashMap<K, V> from,
+            Map.Entry<K, V> entry) {
+        from.remove(entry.getKey());
+        int entrySize = safeSizeOf(entry.getKey(), entry.getValue());
+        size -= entrySize;
+        if (from == window) {
+            windowSize -= entrySize;
+        }
+    }
 
-            entryRemoved(true, key, value, null);
+    /**
+     * 返回链表头部（最近最少使用）的条目，返回的是一份拷贝，不受后续修改影响
+     */
+    private Map.Entry<K, V> eldest(LinkedHashMap<K, V> from) {
+        Iterator<Map.Entry<K, V>> it = from.entrySet().iterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+        Map.Entry<K, V> entry = it.next();
+        return new AbstractMap.SimpleEntry<K, V>(entry.getKey(),
+                entry.getValue());
+    }
+
+    private void checkSize() {
+        if (size < 0 || windowSize < 0
+                || (map.isEmpty() && window.isEmpty() && size != 0)) {
+            throw new IllegalStateException(getClass().getName()
+                    + ".sizeOf() is reporting inconsistent results!");
         }
     }
 
@@ -201,6 +409,12 @@ public class MemoryLruCache<K, V> {
         V previous;
         synchronized (this) {
             previous = map.remove(key);
+            if (previous == null) {
+                previous = window.remove(key);
+                if (previous != null) {
+                    windowSize -= safeSizeOf(key, previous);
+                }
+            }
             if (previous != null) {
                 size -= safeSizeOf(key, previous);
             }
@@ -297,6 +511,13 @@ public class MemoryLruCache<K, V> {
         return maxSize;
     }
 
+    /**
+     * 返回当前低水位，超过maxSize时会批量淘汰到该大小
+     */
+    public synchronized final int lowWaterSize() {
+        return lowWaterSize;
+    }
+
     /**
      * Returns the number of times {@link #get} returned a value that was
      * already present in the cache.
@@ -336,10 +557,12 @@ public class MemoryLruCache<K, V> {
 
     /**
      * Returns a copy of the current contents of the cache, ordered from least
-     * recently accessed to most recently accessed.
+     * recently accessed to most recently accessed. 准入窗口中的条目排在最后
      */
     public synchronized final Map<K, V> snapshot() {
-        return new LinkedHashMap<K, V>(map);
+        Map<K, V> copy = new LinkedHashMap<K, V>(map);
+        copy.putAll(window);
+        return copy;
     }
 
     @Override
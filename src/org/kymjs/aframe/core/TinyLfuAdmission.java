@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2014, KJFrameForAndroid 张涛 (kymjs123@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kymjs.aframe.core;
+
+/**
+ * TinyLFU准入策略：只有访问频率高于被淘汰者的候选条目才能进入主缓存区<br>
+ *
+ * <b>说明</b> 与{@link MemoryLruCache}的准入窗口配合即为W-TinyLFU，
+ * 可以防止列表快速滑动时大量只访问一次的条目把真正常用的条目挤出缓存<br>
+ * <b>创建时间</b> 2014-10-21
+ *
+ * @author kymjs(kymjs123@gmail.com)
+ * @version 1.0
+ */
+public class TinyLfuAdmission<K> implements I_AdmissionPolicy<K> {
+    private final FrequencySketch sketch;
+
+    /**
+     * @param expectedEntries
+     *            缓存中预计的条目数
+     */
+    public TinyLfuAdmission(int expectedEntries) {
+        sketch = new FrequencySketch(expectedEntries);
+    }
+
+    @Override
+    public void record(K key) {
+        sketch.increment(key);
+    }
+
+    @Override
+    public boolean admit(K candidate, K victim) {
+        return sketch.frequency(candidate) > sketch.frequency(victim);
+    }
+}
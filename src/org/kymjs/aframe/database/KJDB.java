@@ -36,6 +36,7 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 /**
  * The DBLibrary's core classes<br>
@@ -745,7 +746,65 @@ public class KJDB {
         return dbModelList;
     }
 
-    private void checkTableExist(Class<?> clazz) {
+    /**
+     * 执行一条不返回数据的sql语句
+     * 
+     * @param sql
+     */
+    public void execSQL(String sql) {
+        debugSql(sql);
+        db.execSQL(sql);
+    }
+
+    /**
+     * 带参数的查询，参数用?占位；sql语句固定时数据库会复用已编译的语句。调用者负责关闭返回的Cursor
+     * 
+     * @param sql
+     * @param selectionArgs
+     *            依次替换sql中的?
+     */
+    public Cursor rawQuery(String sql, String[] selectionArgs) {
+        debugSql(sql);
+        return db.rawQuery(sql, selectionArgs);
+    }
+
+    /**
+     * 预编译一条sql语句，可以反复绑定参数执行。返回的语句不是线程安全的，调用者负责同步
+     * 
+     * @param sql
+     */
+    public SQLiteStatement compileStatement(String sql) {
+        debugSql(sql);
+        return db.compileStatement(sql);
+    }
+
+    /**
+     * 开始一个事务，必须与{@link #endTransaction()}成对调用
+     */
+    public void beginTransaction() {
+        db.beginTransaction();
+    }
+
+    /**
+     * 标记当前事务执行成功，endTransaction时提交；没有标记则回滚
+     */
+    public void setTransactionSuccessful() {
+        db.setTransactionSuccessful();
+    }
+
+    /**
+     * 结束当前事务
+     */
+    public void endTransaction() {
+        db.endTransaction();
+    }
+
+    /**
+     * 确保实体对应的表存在，表已存在时补上实体中新增的列
+     * 
+     * @param clazz
+     */
+    public void checkTableExist(Class<?> clazz) {
         if (!tableIsExist(TableInfo.get(clazz))) {
             String sql = SqlBuilder.getCreatTableSQL(clazz);
             debugSql(sql);
@@ -766,6 +825,7 @@ public class KJDB {
             if (cursor != null && cursor.moveToNext()) {
                 int count = cursor.getInt(0);
                 if (count > 0) {
+                    addMissingColumns(table);
                     table.setCheckDatabese(true);
                     return true;
                 }
@@ -782,6 +842,42 @@ public class KJDB {
         return false;
     }
 
+    /**
+     * 实体类新增了字段时，为已存在的旧表补上对应的列，旧数据中这些列的值为null
+     */
+    private void addMissingColumns(TableInfo table) {
+        List<String> columns = new ArrayList<String>();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("PRAGMA table_info(" + table.getTableName()
+                    + ")", null);
+            int nameIndex = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(nameIndex));
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        List<String> missing = new ArrayList<String>();
+        for (String column : table.propertyMap.keySet()) {
+            if (!columns.contains(column)) {
+                missing.add(column);
+            }
+        }
+        for (String column : table.manyToOneMap.keySet()) {
+            if (!columns.contains(column)) {
+                missing.add(column);
+            }
+        }
+        for (String column : missing) {
+            String sql = "ALTER TABLE " + table.getTableName()
+                    + " ADD COLUMN \"" + column + "\"";
+            debugSql(sql);
+            db.execSQL(sql);
+        }
+    }
+
     private void debugSql(String sql) {
         if (config != null && config.isDebug())
             android.util.Log.d("Debug SQL", ">>>>>>  " + sql);
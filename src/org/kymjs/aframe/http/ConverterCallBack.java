@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2014, KJFrameForAndroid 张涛 (kymjs123@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kymjs.aframe.http;
+
+import java.io.InputStream;
+
+import org.apache.http.Header;
+import org.kymjs.aframe.core.KJException;
+import org.kymjs.aframe.http.cache.CacheKey;
+import org.kymjs.aframe.http.cache.HttpCache;
+
+/**
+ * 返回解码后对象的HttpClient请求回调类<br>
+ * 
+ * <b>说明</b> 响应在后台线程中由解码器解码，{@link #onResult(Object)}在调用者线程中收到解码后的对象；
+ * 没有在构造时指定解码器时使用HttpConfig中的解码器<br>
+ * <b>说明</b> HttpConfig启用了解码结果缓存时，解码结果与内存缓存中的响应保存在一起，
+ * 再次命中缓存时直接返回，不再读取（解压、读文件）缓存内容，也不再解码<br>
+ * <b>说明</b> 每次请求使用新的回调对象<br>
+ * <b>创建时间</b> 2014-11-5
+ * 
+ * @author kymjs(kymjs123@gmail.com)
+ * @version 1.0
+ */
+public abstract class ConverterCallBack<T> extends StreamCallBack {
+    private I_ResponseConverter<T> converter;
+    /** 保存解码结果的内存缓存，不缓存解码结果时为null */
+    private HttpCache decodedCache;
+    private CacheKey cacheKey;
+
+    /**
+     * 使用HttpConfig中的解码器
+     */
+    public ConverterCallBack() {}
+
+    public ConverterCallBack(I_ResponseConverter<T> converter) {
+        this.converter = converter;
+    }
+
+    /**
+     * 请求成功后在调用者线程中回调
+     */
+    abstract public void onResult(T result);
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void onSuccess(Object t) {
+        onResult((T) t);
+    }
+
+    public I_ResponseConverter<T> getConverter() {
+        return converter;
+    }
+
+    @Override
+    protected Object onStream(InputStream in, String charset,
+            long contentLength, Header[] headers) throws Exception {
+        return converter.convert(in, charset);
+    }
+
+    @Override
+    void onParsed(Object result) {
+        if (decodedCache != null && cacheKey != null && result != null) {
+            decodedCache.putDecoded(cacheKey, converter, result);
+        }
+    }
+
+    /**
+     * 发起请求前由KJHttp调用
+     * 
+     * @param defaultConverter
+     *            HttpConfig中的解码器
+     * @param decodedCache
+     *            保存解码结果的内存缓存，为null时不缓存解码结果
+     * @param cacheKey
+     *            请求指纹，为null时不缓存解码结果
+     */
+    @SuppressWarnings("unchecked")
+    void bind(I_ResponseConverter<?> defaultConverter,
+            HttpCache decodedCache, CacheKey cacheKey) {
+        if (converter == null) {
+            converter = (I_ResponseConverter<T>) defaultConverter;
+        }
+        if (converter == null) {
+            throw new KJException("response converter is null");
+        }
+        this.decodedCache = decodedCache;
+        this.cacheKey = cacheKey;
+    }
+
+    /**
+     * 内存缓存中该请求已有的解码结果，不读取缓存内容
+     * 
+     * @param fresh
+     *            为true时只使用未过期的缓存
+     * @return 没有时返回null
+     */
+    Object getDecoded(boolean fresh) {
+        if (decodedCache == null || cacheKey == null) {
+            return null;
+        }
+        return decodedCache.getDecoded(cacheKey, converter, fresh);
+    }
+}
@@ -20,10 +20,14 @@ import java.io.IOException;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
 import org.apache.http.client.HttpResponseException;
 import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.util.EntityUtils;
+import org.kymjs.aframe.http.HttpConfig.Priority;
+import org.kymjs.aframe.http.cache.CacheHeaders;
+import org.kymjs.aframe.http.cache.CacheKey;
 import org.kymjs.aframe.utils.StringUtils;
 
 import android.os.Handler;
@@ -42,6 +46,7 @@ public abstract class HttpCallBack implements I_HttpRespond {
     /************************** class method ***********************************/
 
     protected Handler handler;
+    private Priority priority = Priority.USER_VISIBLE;
     protected static final int MESSAGE_SUCCESS = 0;
     protected static final int MESSAGE_FAILURE = 1;
 
@@ -57,6 +62,21 @@ public abstract class HttpCallBack implements I_HttpRespond {
         }
     }
 
+    /**
+     * 请求的优先级，默认USER_VISIBLE
+     */
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * 设置请求的优先级，需要在发起请求之前设置；合并到正在进行的相同get请求时沿用该请求的优先级
+     */
+    public HttpCallBack setPriority(Priority priority) {
+        this.priority = priority == null ? Priority.USER_VISIBLE : priority;
+        return this;
+    }
+
     protected void handleMessage(Message msg) {
         Object[] response;
         switch (msg.what) {
@@ -129,10 +149,14 @@ public abstract class HttpCallBack implements I_HttpRespond {
         return msg;
     }
 
-    // 异步HTTP请求的接口。
-    void sendResponseMessage(String uri, HttpConfig config,
+    // 异步HTTP请求的接口。key为null时响应不写入缓存
+    void sendResponseMessage(CacheKey key, HttpConfig config,
             HttpResponse response) {
         StatusLine status = response.getStatusLine();
+        if (status.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+            sendNotModifiedMessage(key, config, response);
+            return;
+        }
         String responseBody = null;
         try {
             HttpEntity entity = null;
@@ -149,14 +173,54 @@ public abstract class HttpCallBack implements I_HttpRespond {
                     new HttpResponseException(status.getStatusCode(),
                             status.getReasonPhrase()), responseBody);
         } else {
-            if (config.isUseCache()) {
-                config.getCacher().add(uri, responseBody);
+            if (config.isUseCache() && key != null) {
+                config.getCacher().add(key, responseBody,
+                        cacheHeaders(response));
             }
             sendSuccessMessage(status.getStatusCode(),
                     response.getAllHeaders(), responseBody);
         }
     }
 
+    /**
+     * 条件请求得到304：服务器上的内容没有变化，刷新缓存有效期后把缓存的内容作为结果返回
+     */
+    private void sendNotModifiedMessage(CacheKey key, HttpConfig config,
+            HttpResponse response) {
+        String cached = null;
+        if (config.isUseCache() && key != null) {
+            cached = config.getCacher().refresh(key,
+                    cacheHeaders(response));
+        }
+        if (cached != null) {
+            sendSuccessMessage(HttpStatus.SC_NOT_MODIFIED,
+                    response.getAllHeaders(), cached);
+        } else {
+            // 发起请求后缓存被清除了，304没有可用的内容
+            StatusLine status = response.getStatusLine();
+            sendFailureMessage(
+                    new HttpResponseException(status.getStatusCode(),
+                            status.getReasonPhrase()), (String) null);
+        }
+    }
+
+    /**
+     * 解析响应中与缓存有关的响应头
+     */
+    static CacheHeaders cacheHeaders(HttpResponse response) {
+        return CacheHeaders.parse(headerValue(response, "Cache-Control"),
+                headerValue(response, "Expires"),
+                headerValue(response, "Date"),
+                headerValue(response, "Age"),
+                headerValue(response, "ETag"),
+                headerValue(response, "Last-Modified"));
+    }
+
+    private static String headerValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
     /************************** class method ***********************************/
     protected boolean progress = false;
 
@@ -16,7 +16,9 @@
 package org.kymjs.aframe.http;
 
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.kymjs.aframe.core.KJException;
 import org.kymjs.aframe.http.cache.I_HttpCache;
@@ -35,6 +37,32 @@ public class HttpConfig {
     public static final String FileParamsName = "KJFrameForAndroid_File";
     public static final String FileParamsKey = "KJLibrary";
 
+    /**
+     * HttpClient get请求读取缓存的策略，只在启用Cache时生效
+     */
+    public static enum CachePolicy {
+        /** 不读取缓存，总是访问网络（响应仍会写入缓存） */
+        NETWORK_ONLY,
+        /** 有未过期的缓存时直接使用，否则访问网络（默认） */
+        CACHE_FIRST,
+        /** 有未过期的缓存时直接使用；只有过期的缓存时先返回它，再在后台以低优先级刷新缓存 */
+        STALE_WHILE_REVALIDATE,
+        /** 有缓存（不论是否过期）时先返回它，同时访问网络，内容有变化时再回调一次 */
+        CACHE_THEN_NETWORK
+    }
+
+    /**
+     * HttpClient请求的优先级，线程繁忙时高优先级的请求先执行
+     */
+    public static enum Priority {
+        /** 用户正在等待结果的请求（默认） */
+        USER_VISIBLE,
+        /** 预加载，用户稍后可能需要 */
+        PREFETCH,
+        /** 后台同步与缓存刷新，最多占用一半的线程 */
+        BACKGROUND
+    }
+
     private static final int THREAD_COUNT = 6;
     private static final int DEFAULT_SOCKET_BUFFER_SIZE = 8 * 1024; // 8KB
     private static final int SOCKET_TIMEOUT = 8 * 1000; // 8秒
@@ -42,6 +70,9 @@ public class HttpConfig {
     private static final String CHAR_SET = "UTF8";
     private static final boolean DO_OUT_PUT = true;
     private static int MAX_CONNECTION = 10;
+    private static final int MAX_REQUESTS_PER_HOST = 5;
+    /** 系统默认的http.maxConnections */
+    static final int DEFAULT_KEEP_ALIVE_CONNECTIONS = 5;
     private static final String TYPE = "application/x-www-form-urlencoded";
 
     private int socketBuffer; // socket缓冲区大小
@@ -54,11 +85,21 @@ public class HttpConfig {
     private boolean useCache;
     private String contentType;
     private int maxConnections; // http请求最大并发连接数
+    private int maxRequestsPerHost; // 同一主机的最大并发请求数
+    private boolean keepAlive; // HttpURLConnection是否复用连接（系统属性，全局）
+    private int keepAliveConnections; // HttpURLConnection每个主机保留的空闲连接数（系统属性，全局）
     private int downThreadCount;
     private I_FileLoader downloader; // 文件下载器
     private I_HttpCache cacher; // http的json数据缓存器
     private String cookie;
     private Map<String, String> header;
+    private Set<String> cacheKeyHeaders; // 参与缓存指纹的请求头
+    private CachePolicy cachePolicy; // get请求读取缓存的策略
+    private boolean notifyRevalidated; // 后台刷新得到新内容时是否再次回调
+    private I_ResponseConverter<?> converter; // 默认的响应解码器
+    private boolean cacheDecoded; // 是否在内存缓存中保存解码结果
+    private long progressInterval; // 进度回调的最短间隔（毫秒）
+    private int progressStep; // 进度回调的百分比步长
 
     public HttpConfig() {
         socketBuffer = DEFAULT_SOCKET_BUFFER_SIZE;
@@ -69,8 +110,18 @@ public class HttpConfig {
         useCache = false;
         contentType = TYPE;
         maxConnections = MAX_CONNECTION;
+        maxRequestsPerHost = MAX_REQUESTS_PER_HOST;
+        keepAlive = true;
+        keepAliveConnections = DEFAULT_KEEP_ALIVE_CONNECTIONS;
         downThreadCount = THREAD_COUNT;
         header = new HashMap<String, String>();
+        cacheKeyHeaders = new LinkedHashSet<String>();
+        cacheKeyHeaders.add("Accept");
+        cacheKeyHeaders.add("Accept-Language");
+        cachePolicy = CachePolicy.CACHE_FIRST;
+        notifyRevalidated = false;
+        progressInterval = ProgressReporter.DEFAULT_INTERVAL;
+        progressStep = ProgressReporter.DEFAULT_PERCENT_STEP;
     }
 
     /**
@@ -87,6 +138,94 @@ public class HttpConfig {
         this.useCache = useCache;
     }
 
+    /**
+     * get请求读取缓存的策略，默认CACHE_FIRST
+     */
+    public CachePolicy getCachePolicy() {
+        return cachePolicy;
+    }
+
+    /**
+     * get请求读取缓存的策略，只在启用Cache时生效
+     */
+    public void setCachePolicy(CachePolicy cachePolicy) {
+        if (cachePolicy == null) {
+            throw new KJException("cache policy is null");
+        }
+        this.cachePolicy = cachePolicy;
+    }
+
+    /**
+     * STALE_WHILE_REVALIDATE策略下，后台刷新得到与过期缓存不同的内容时是否再次回调onSuccess
+     */
+    public boolean isNotifyRevalidated() {
+        return notifyRevalidated;
+    }
+
+    /**
+     * STALE_WHILE_REVALIDATE策略下，后台刷新得到与过期缓存不同的内容时是否再次回调onSuccess，默认不回调
+     */
+    public void setNotifyRevalidated(boolean notifyRevalidated) {
+        this.notifyRevalidated = notifyRevalidated;
+    }
+
+    /**
+     * ConverterCallBack没有指定解码器时使用的解码器
+     */
+    public I_ResponseConverter<?> getConverter() {
+        return converter;
+    }
+
+    /**
+     * ConverterCallBack没有指定解码器时使用的解码器
+     */
+    public void setConverter(I_ResponseConverter<?> converter) {
+        this.converter = converter;
+    }
+
+    /**
+     * 是否在内存缓存中保存ConverterCallBack的解码结果
+     */
+    public boolean isCacheDecoded() {
+        return cacheDecoded;
+    }
+
+    /**
+     * 是否在内存缓存中保存ConverterCallBack的解码结果，命中缓存时直接使用，不再解码；
+     * 只对默认的缓存器HttpCache有效，默认不保存
+     */
+    public void setCacheDecoded(boolean cacheDecoded) {
+        this.cacheDecoded = cacheDecoded;
+    }
+
+    /**
+     * 进度回调的最短间隔（毫秒）
+     */
+    public long getProgressInterval() {
+        return progressInterval;
+    }
+
+    /**
+     * 进度回调的最短间隔（毫秒），默认1000；不大于0时每读写一块数据都会尝试回调（仍会合并）
+     */
+    public void setProgressInterval(long progressInterval) {
+        this.progressInterval = progressInterval;
+    }
+
+    /**
+     * 进度回调的百分比步长
+     */
+    public int getProgressStep() {
+        return progressStep;
+    }
+
+    /**
+     * 进度增加达到总数的该百分比时不论间隔立即回调，默认5；不大于0时只按间隔回调
+     */
+    public void setProgressStep(int progressStep) {
+        this.progressStep = progressStep;
+    }
+
     /**
      * 设置cookie
      * 
@@ -126,6 +265,23 @@ public class HttpConfig {
         return header;
     }
 
+    /**
+     * 添加一个参与缓存指纹的请求头（不区分大小写），该请求头的值不同时不共用缓存
+     */
+    public void addCacheKeyHeader(String name) {
+        if (StringUtils.isEmpty(name)) {
+            throw new KJException("cache key header name is empty");
+        }
+        cacheKeyHeaders.add(name);
+    }
+
+    /**
+     * 参与缓存指纹的请求头名称，默认Accept与Accept-Language
+     */
+    public Set<String> getCacheKeyHeaders() {
+        return cacheKeyHeaders;
+    }
+
     /**
      * socket缓冲
      */
@@ -226,6 +382,57 @@ public class HttpConfig {
         this.maxConnections = maxConnections;
     }
 
+    /**
+     * HttpClient请求中同一主机的最大并发请求数
+     */
+    public int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    /**
+     * HttpClient请求中同一主机的最大并发请求数，默认5，在创建KJHttp之前设置
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        this.maxRequestsPerHost = maxRequestsPerHost;
+    }
+
+    /**
+     * HttpURLConnection请求是否复用连接(keep-alive)
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * HttpURLConnection请求是否复用连接(keep-alive)，默认复用<br>
+     * <b>注意</b> 对应系统属性http.keepAlive，不是每个KJHttp单独的设置：它对整个进程（包括其他库）的
+     * HttpURLConnection生效，并且系统只在第一次使用HttpURLConnection时读取一次。
+     * 只有第一个创建的KJHttp的配置生效，而且必须在进程中任何HttpURLConnection请求（包括图片加载）之前创建；
+     * 与默认值相同或系统属性已被设置时不做修改
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * HttpURLConnection连接池中每个主机保留的空闲连接数
+     */
+    public int getKeepAliveConnections() {
+        return keepAliveConnections;
+    }
+
+    /**
+     * HttpURLConnection连接池中每个主机保留的空闲连接数，默认5（系统默认值）<br>
+     * <b>注意</b> 对应系统属性http.maxConnections，与{@link #setKeepAlive(boolean)}一样
+     * 对整个进程全局生效，只有第一个创建的KJHttp的配置生效，必须在第一次HttpURLConnection请求之前设置
+     */
+    public void setKeepAliveConnections(int keepAliveConnections) {
+        if (keepAliveConnections <= 0) {
+            throw new KJException("keep-alive connections must be positive");
+        }
+        this.keepAliveConnections = keepAliveConnections;
+    }
+
     /**
      * 多线程下载的线程数
      */
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2014, KJFrameForAndroid 张涛 (kymjs123@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kymjs.aframe.http;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.kymjs.aframe.http.HttpConfig.Priority;
+
+/**
+ * HttpClient请求的调度器：线程数有上限，按优先级与主机分配线程<br>
+ *
+ * <b>说明</b> 每个优先级一条队列，同一优先级内先进先出；空闲的线程总是先取高优先级队列中的请求，
+ * 请求所在主机的并发数已达上限时跳过它，取同一队列中后面其他主机的请求<br>
+ * <b>说明</b> 低优先级的请求不能占满全部线程：PREFETCH最多占用maxRequests-1个，
+ * BACKGROUND最多占用一半，后台同步繁忙时用户可见的请求仍然有空闲线程<br>
+ * <b>说明</b> 排队中的请求取消时只标记为已取消（O(1)），线程取到它时直接丢弃；
+ * 已开始执行的请求按Future的语义中断<br>
+ * <b>说明</b> 排队中的请求可以提升到更高优先级的队列（合并的请求有更高优先级的订阅者加入时），
+ * 已开始执行的请求则提高执行线程的优先级<br>
+ * <b>说明</b> 线程按需创建，空闲一段时间后退出<br>
+ * <b>创建时间</b> 2014-11-3
+ *
+ * @author kymjs(kymjs123@gmail.com)
+ * @version 1.0
+ */
+final class HttpDispatcher {
+    /** 空闲线程等待新请求的最长时间 */
+    private static final long KEEP_ALIVE = 60 * 1000;
+
+    private final Priority[] lanes = Priority.values();
+    private final Object lock = new Object();
+    /** 每个优先级的等待队列，下标为Priority.ordinal() */
+    private final LinkedList<Job>[] queues;
+    /** 每个优先级正在执行的请求数 */
+    private final int[] runningPerLane;
+    private final int[] lanePermits;
+    private final Map<String, Integer> runningPerHost = new HashMap<String, Integer>();
+    private final int maxRequests;
+    private final int maxRequestsPerHost;
+    private int workerCount;
+    private int threadSeq;
+    private int idleCount;
+
+    /**
+     * @param maxRequests
+     *            最大并发请求数（线程数）
+     * @param maxRequestsPerHost
+     *            同一主机的最大并发请求数
+     */
+    @SuppressWarnings("unchecked")
+    HttpDispatcher(int maxRequests, int maxRequestsPerHost) {
+        this.maxRequests = Math.max(1, maxRequests);
+        this.maxRequestsPerHost = Math.max(1, maxRequestsPerHost);
+        queues = new LinkedList[lanes.length];
+        runningPerLane = new int[lanes.length];
+        lanePermits = new int[lanes.length];
+        for (Priority lane : lanes) {
+            queues[lane.ordinal()] = new LinkedList<Job>();
+        }
+        lanePermits[Priority.USER_VISIBLE.ordinal()] = this.maxRequests;
+        lanePermits[Priority.PREFETCH.ordinal()] = Math.max(1,
+                this.maxRequests - 1);
+        lanePermits[Priority.BACKGROUND.ordinal()] = Math.max(1,
+                this.maxRequests / 2);
+    }
+
+    /**
+     * 提交一个请求
+     *
+     * @param priority
+     *            请求的优先级，为null时按USER_VISIBLE
+     * @param host
+     *            请求的主机，用于限制同一主机的并发数
+     * @return 可用于取消请求的Future
+     */
+    Future<?> submit(Runnable task, Priority priority, String host) {
+        Job job = new Job(task, priority == null ? Priority.USER_VISIBLE
+                : priority, host == null ? "" : host.toLowerCase(Locale.US));
+        synchronized (lock) {
+            queues[job.priority.ordinal()].add(job);
+            wakeWorker();
+        }
+        return job;
+    }
+
+    /**
+     * 提高请求的优先级：仍在排队时移到新优先级队列的末尾；已开始执行且提升为USER_VISIBLE时，
+     * 把执行线程恢复为普通优先级。新优先级不比原来的高时不做处理
+     *
+     * @param future
+     *            {@link #submit(Runnable, Priority, String)}的返回值
+     */
+    void promote(Future<?> future, Priority priority) {
+        if (!(future instanceof Job) || priority == null) {
+            return;
+        }
+        Job job = (Job) future;
+        synchronized (lock) {
+            if (job.isDone() || priority.ordinal() >= job.priority.ordinal()) {
+                return;
+            }
+            if (queues[job.priority.ordinal()].remove(job)) {
+                job.priority = priority;
+                queues[priority.ordinal()].add(job);
+                wakeWorker();
+            } else if (job.tid != 0 && priority == Priority.USER_VISIBLE) {
+                android.os.Process.setThreadPriority(job.tid,
+                        android.os.Process.THREAD_PRIORITY_DEFAULT);
+            }
+        }
+    }
+
+    /**
+     * 等待中的请求数（不含已取消的）
+     */
+    int queuedCount() {
+        synchronized (lock) {
+            int count = 0;
+            for (LinkedList<Job> queue : queues) {
+                for (Job job : queue) {
+                    if (!job.isCancelled()) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * 正在执行的请求数
+     */
+    int runningCount() {
+        synchronized (lock) {
+            int count = 0;
+            for (int running : runningPerLane) {
+                count += running;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * 唤醒一个空闲线程，没有空闲线程且未达上限时新建一个。调用者持有lock
+     */
+    private void wakeWorker() {
+        if (idleCount > 0) {
+            lock.notify();
+        } else if (workerCount < maxRequests) {
+            workerCount++;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    workLoop();
+                }
+            }, "KJHttp dispatcher #" + (++threadSeq));
+            thread.start();
+        }
+    }
+
+    private void workLoop() {
+        Job job = null;
+        while ((job = next(job)) != null) {
+            job.run();
+            // 请求执行中被取消时线程可能处于中断状态，不能带到下一个请求
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * 结束上一个请求并取得下一个可执行的请求
+     *
+     * @param finished
+     *            刚执行完的请求，第一次调用时为null
+     * @return 空闲超时返回null，线程应当退出
+     */
+    private Job next(Job finished) {
+        synchronized (lock) {
+            if (finished != null) {
+                finished.tid = 0;
+                runningPerLane[finished.priority.ordinal()]--;
+                int running = runningPerHost.get(finished.host) - 1;
+                if (running == 0) {
+                    runningPerHost.remove(finished.host);
+                } else {
+                    runningPerHost.put(finished.host, running);
+                }
+            }
+            long deadline = System.currentTimeMillis() + KEEP_ALIVE;
+            while (true) {
+                Job job = poll();
+                if (job != null) {
+                    runningPerLane[job.priority.ordinal()]++;
+                    Integer running = runningPerHost.get(job.host);
+                    runningPerHost.put(job.host, running == null ? 1
+                            : running + 1);
+                    // 在锁内设置线程优先级，不会覆盖promote对执行中请求的调整
+                    job.tid = android.os.Process.myTid();
+                    android.os.Process
+                            .setThreadPriority(job.priority == Priority.USER_VISIBLE ? android.os.Process.THREAD_PRIORITY_DEFAULT
+                                    : android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                    // 同时空出了多个名额（例如主机与优先级的限制同时解除）时，让其他线程也来取
+                    if (hasRunnable()) {
+                        wakeWorker();
+                    }
+                    return job;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    workerCount--;
+                    return null;
+                }
+                idleCount++;
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    // 只有取消正在执行的请求才会中断本线程，忽略
+                } finally {
+                    idleCount--;
+                }
+            }
+        }
+    }
+
+    /**
+     * 按优先级取出第一个可以执行的请求，顺带丢弃遇到的已取消请求。调用者持有lock
+     */
+    private Job poll() {
+        for (Priority lane : lanes) {
+            if (runningPerLane[lane.ordinal()] >= lanePermits[lane.ordinal()]) {
+                continue;
+            }
+            Iterator<Job> iterator = queues[lane.ordinal()].iterator();
+            while (iterator.hasNext()) {
+                Job job = iterator.next();
+                if (job.isCancelled()) {
+                    iterator.remove();
+                } else if (hostAvailable(job.host)) {
+                    iterator.remove();
+                    return job;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 是否还有可以立即执行的请求。调用者持有lock
+     */
+    private boolean hasRunnable() {
+        for (Priority lane : lanes) {
+            if (runningPerLane[lane.ordinal()] >= lanePermits[lane.ordinal()]) {
+                continue;
+            }
+            for (Job job : queues[lane.ordinal()]) {
+                if (!job.isCancelled() && hostAvailable(job.host)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean hostAvailable(String host) {
+        Integer running = runningPerHost.get(host);
+        return running == null || running < maxRequestsPerHost;
+    }
+
+    private static final class Job extends FutureTask<Object> {
+        /** 所在的优先级，排队时可以被promote提高；只在持有lock时访问 */
+        Priority priority;
+        final String host;
+        /** 执行该请求的线程id，没有在执行时为0；只在持有lock时访问 */
+        int tid;
+
+        Job(Runnable task, Priority priority, String host) {
+            super(task, null);
+            this.priority = priority;
+            this.host = host;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2014, KJFrameForAndroid 张涛 (kymjs123@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kymjs.aframe.http;
+
+import java.io.InputStream;
+
+/**
+ * 响应解码器的规范接口协议：把响应内容解码为对象<br>
+ * 
+ * <b>说明</b> 在后台线程中调用，可以同时被多个请求使用，实现必须是线程安全的<br>
+ * <b>说明</b> 启用解码结果缓存时，同一个解码器对象的解码结果会被复用，不应修改解码得到的对象<br>
+ * <b>创建时间</b> 2014-11-5
+ * 
+ * @author kymjs(kymjs123@gmail.com)
+ * @version 1.0
+ */
+public interface I_ResponseConverter<T> {
+
+    /**
+     * 解码响应内容
+     * 
+     * @param in
+     *            响应内容，不需要关闭
+     * @param charset
+     *            响应内容的字符编码
+     * @throws Exception
+     *             解码失败时抛出，请求会回调onFailure
+     */
+    T convert(InputStream in, String charset) throws Exception;
+}
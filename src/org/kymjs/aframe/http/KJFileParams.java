@@ -15,9 +15,7 @@
  */
 package org.kymjs.aframe.http;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
@@ -39,6 +37,7 @@ import org.kymjs.aframe.core.KJException;
  * 但为了效率你应该为没有文件参数的kjh.urlPost()方法传递KJStringParams对象 <br>
  * <b>说明</b> 该类使用一个ConcurrentHashMap(String, String)保存字符串类型的参数，
  * 使用一个ArrayList(InputStream)保存文件类型的参数<br>
+ * <b>说明</b> 通过put(File)与put(byte[])添加的文件参数在使用HttpClient发送时可以重复发送，文件只在发送时才被读取<br>
  * <b>创建时间</b> 2014-8-7
  * 
  * @author kymjs(kymjs123@gmail.com)
@@ -46,9 +45,9 @@ import org.kymjs.aframe.core.KJException;
  */
 public class KJFileParams implements I_HttpParams {
     private ConcurrentHashMap<String, String> urlParams;
-    // 该对象仅在使用HttpUrlConnection时会用到
+    // 通过put(InputStream)添加的文件流，已不再被框架使用，仅为兼容保留
     protected ArrayList<InputStream> fileParams;
-    // 该对象仅在使用HttpClient时会用到
+    // HttpClient与HttpUrlConnection都通过它生成multipart实体
     protected ConcurrentHashMap<String, FileWrapper> fileWraps;
 
     private void init(int i) {
@@ -90,11 +89,22 @@ public class KJFileParams implements I_HttpParams {
     }
 
     public void put(byte[] file) {
-        put(new ByteArrayInputStream(file));
+        if (file == null) {
+            throw new KJException("value is NULL");
+        }
+        fileWraps.put(HttpConfig.FileParamsKey + fileWraps.size(),
+                new FileWrapper(file, HttpConfig.FileParamsName, null));
     }
 
     public void put(File file) throws FileNotFoundException {
-        put(new FileInputStream(file));
+        if (file == null) {
+            throw new KJException("value is NULL");
+        }
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getAbsolutePath());
+        }
+        fileWraps.put(HttpConfig.FileParamsKey + fileWraps.size(),
+                new FileWrapper(file, HttpConfig.FileParamsName, null));
     }
 
     public void put(InputStream value) {
@@ -105,9 +115,10 @@ public class KJFileParams implements I_HttpParams {
     public void put(String key, InputStream value, String fileName) {
         if (value != null) {
             fileParams.add(value);
-            if (key != null) {
-                fileWraps.put(key, new FileWrapper(value, fileName, null));
+            if (key == null) {
+                key = HttpConfig.FileParamsKey + fileWraps.size();
             }
+            fileWraps.put(key, new FileWrapper(value, fileName, null));
         } else {
             throw new KJException("value is NULL");
         }
@@ -153,30 +164,7 @@ public class KJFileParams implements I_HttpParams {
     public HttpEntity getEntity() {
         HttpEntity entity = null;
         if (!fileWraps.isEmpty()) {
-            MultipartEntity multipartEntity = new MultipartEntity();
-            for (ConcurrentHashMap.Entry<String, String> entry : urlParams
-                    .entrySet()) {
-                multipartEntity.addPart(entry.getKey(), entry.getValue());
-            }
-            int currentIndex = 0;
-            int lastIndex = fileWraps.entrySet().size() - 1;
-            for (ConcurrentHashMap.Entry<String, FileWrapper> entry : fileWraps
-                    .entrySet()) {
-                FileWrapper file = entry.getValue();
-                if (file.inputStream != null) {
-                    boolean isLast = currentIndex == lastIndex;
-                    if (file.contentType != null) {
-                        multipartEntity.addPart(entry.getKey(),
-                                file.getFileName(), file.inputStream,
-                                file.contentType, isLast);
-                    } else {
-                        multipartEntity.addPart(entry.getKey(),
-                                file.getFileName(), file.inputStream, isLast);
-                    }
-                }
-                currentIndex++;
-            }
-            entity = multipartEntity;
+            entity = getMultipartEntity();
         } else {
             try {
                 entity = new UrlEncodedFormEntity(getParamsList(), "UTF-8");
@@ -187,6 +175,39 @@ public class KJFileParams implements I_HttpParams {
         return entity;
     }
 
+    /**
+     * 包含全部字符串参数与文件参数的multipart实体，文件只在发送时才被读取
+     */
+    MultipartEntity getMultipartEntity() {
+        MultipartEntity multipartEntity = new MultipartEntity();
+        for (ConcurrentHashMap.Entry<String, String> entry : urlParams
+                .entrySet()) {
+            multipartEntity.addPart(entry.getKey(), entry.getValue());
+        }
+        for (ConcurrentHashMap.Entry<String, FileWrapper> entry : fileWraps
+                .entrySet()) {
+            FileWrapper file = entry.getValue();
+            if (file.file != null) {
+                // 发送时才读取文件，实体可以重复发送
+                multipartEntity.addPart(entry.getKey(), file.file,
+                        file.getFileName(), file.contentType);
+            } else if (file.data != null) {
+                multipartEntity.addPart(entry.getKey(), file.data,
+                        file.getFileName(), file.contentType);
+            } else if (file.inputStream != null) {
+                if (file.contentType != null) {
+                    multipartEntity.addPart(entry.getKey(),
+                            file.getFileName(), file.inputStream,
+                            file.contentType, false);
+                } else {
+                    multipartEntity.addPart(entry.getKey(),
+                            file.getFileName(), file.inputStream, false);
+                }
+            }
+        }
+        return multipartEntity;
+    }
+
     /**
      * String的参数集，如果参数仅有String而没有File时，为了效率你应该使用KJStringParams
      */
@@ -210,6 +231,8 @@ public class KJFileParams implements I_HttpParams {
      */
     private static class FileWrapper {
         public InputStream inputStream;
+        public File file;
+        public byte[] data;
         public String fileName;
         public String contentType;
 
@@ -220,6 +243,19 @@ public class KJFileParams implements I_HttpParams {
             this.contentType = contentType;
         }
 
+        public FileWrapper(File file, String fileName, String contentType) {
+            this.file = file;
+            this.fileName = fileName;
+            this.contentType = contentType;
+        }
+
+        public FileWrapper(byte[] data, String fileName,
+                String contentType) {
+            this.data = data;
+            this.fileName = fileName;
+            this.contentType = contentType;
+        }
+
         public String getFileName() {
             if (fileName != null) {
                 return fileName;
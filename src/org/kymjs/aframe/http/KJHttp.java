@@ -15,13 +15,12 @@
  */
 package org.kymjs.aframe.http;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
 import java.net.ConnectException;
@@ -37,7 +36,6 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.WeakHashMap;
 import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.http.Header;
@@ -76,9 +74,15 @@ import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.SyncBasicHttpContext;
+import org.apache.http.util.EntityUtils;
+import org.kymjs.aframe.core.ByteArrayPool;
 import org.kymjs.aframe.core.KJException;
 import org.kymjs.aframe.core.KJTaskExecutor;
-import org.kymjs.aframe.core.KJThreadExecutors;
+import org.kymjs.aframe.http.HttpConfig.CachePolicy;
+import org.kymjs.aframe.http.HttpConfig.Priority;
+import org.kymjs.aframe.http.cache.CacheBean;
+import org.kymjs.aframe.http.cache.CacheHeaders;
+import org.kymjs.aframe.http.cache.CacheKey;
 import org.kymjs.aframe.http.cache.HttpCache;
 import org.kymjs.aframe.http.downloader.FileDownLoader;
 import org.kymjs.aframe.http.downloader.I_FileLoader;
@@ -107,22 +111,62 @@ import android.content.Context;
  * @version 1.5
  */
 public class KJHttp {
+    /** HttpURLConnection读写循环使用的缓冲区大小，缓冲区从ByteArrayPool中复用 */
+    private static final int IO_BUFFER_SIZE = 4 * 1024;
+    /** 请求体不超过该大小时才作为缓存指纹的一部分，更大的请求不使用缓存 */
+    private static final int MAX_KEY_BODY_SIZE = 4 * 1024;
+
+    /** 连接池的系统属性是否已经设置过 */
+    private static boolean poolPropertiesApplied;
 
     private HttpConfig config;
 
     /**
-     * 使用参数传递的配置器创建httpLibrary
+     * 使用参数传递的配置器创建httpLibrary，默认缓存器通过栈顶Activity创建
      */
     public KJHttp(HttpConfig config) {
+        this(null, config);
+    }
+
+    /**
+     * 使用参数传递的配置器创建httpLibrary
+     * 
+     * @param context
+     *            用于创建默认缓存器，可以在没有Activity时（例如Application、Service中）使用，
+     *            为null时使用栈顶Activity
+     */
+    public KJHttp(Context context, HttpConfig config) {
         this.config = config;
         if (config.isUseCache() && config.getCacher() == null) {
             // json数据缓存器，也可以自己通过实现I_HttpCache接口协议定义
-            this.config.setCacher(HttpCache.create());
+            this.config.setCacher(HttpCache.create(context));
         }
+        applyConnectionPoolProperties(config);
         // 如果使用httpClient必须初始化，如果不使用，则无需调用
         initHttpClient();
     }
 
+    /**
+     * HttpURLConnection的连接池由系统属性控制，进程内全局生效，并且只在连接池初始化时读取一次，
+     * 所以只在第一次创建KJHttp时设置，只设置与系统默认值不同的属性，已被设置过的属性不覆盖
+     */
+    private static synchronized void applyConnectionPoolProperties(
+            HttpConfig config) {
+        if (poolPropertiesApplied) {
+            return;
+        }
+        poolPropertiesApplied = true;
+        if (!config.isKeepAlive()
+                && System.getProperty("http.keepAlive") == null) {
+            System.setProperty("http.keepAlive", "false");
+        }
+        if (config.getKeepAliveConnections() != HttpConfig.DEFAULT_KEEP_ALIVE_CONNECTIONS
+                && System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections",
+                    String.valueOf(config.getKeepAliveConnections()));
+        }
+    }
+
     /**
      * 使用默认http配置创建httpLibrary
      */
@@ -132,6 +176,9 @@ public class KJHttp {
 
     /*********************** HttpURLConnection get请求 *************************/
 
+    /** 正在进行的HttpURLConnection get请求，用于合并相同的请求 */
+    private final SingleFlight<I_HttpRespond> inFlightUrlGets = new SingleFlight<I_HttpRespond>();
+
     /**
      * 使用HttpURLConnection方式发起get请求
      * 
@@ -144,12 +191,13 @@ public class KJHttp {
      */
     public void urlGet(String url, KJStringParams params,
             I_HttpRespond callback) {
+        CacheKey key = getCacheKey(url, params);
         if (params != null) {
             StringBuilder str = new StringBuilder(url);
             str.append("?").append(params.toString());
             url = str.toString();
         }
-        urlGet(url, callback);
+        urlGet(url, key, callback);
     }
 
     /**
@@ -161,7 +209,69 @@ public class KJHttp {
      *            请求中的回调方法，可选类型：FileCallBack、StringCallBack
      */
     public void urlGet(String url, I_HttpRespond callback) {
-        new HttpUrlGetTask(callback, url).execute();
+        urlGet(url, getCacheKey(url, null), callback);
+    }
+
+    private void urlGet(String url, CacheKey key, I_HttpRespond callback) {
+        if (callback == null) {
+            new HttpUrlGetTask(callback, url, key).execute();
+            return;
+        }
+        // 相同的get请求正在进行时，只加入等待结果，不再重复访问网络
+        SingleFlight.Call<I_HttpRespond> call = inFlightUrlGets.join(
+                SingleFlight.key("GET", url, config.getHeader()), callback)
+                .getCall();
+        if (call.claimStart()) {
+            new HttpUrlGetTask(new CoalescedRespond(call), url, key)
+                    .execute();
+        }
+    }
+
+    /**
+     * 把一次HttpURLConnection请求的结果分发给所有相同请求的回调，在UI线程中调用
+     */
+    private static class CoalescedRespond implements I_HttpRespond {
+        private final SingleFlight.Call<I_HttpRespond> call;
+
+        public CoalescedRespond(SingleFlight.Call<I_HttpRespond> call) {
+            this.call = call;
+        }
+
+        @Override
+        public boolean isProgress() {
+            for (I_HttpRespond callback : call.subscribers()) {
+                if (callback.isProgress()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void setProgress(boolean open) {}
+
+        @Override
+        public void onLoading(long count, long current) {
+            for (I_HttpRespond callback : call.subscribers()) {
+                if (callback.isProgress()) {
+                    callback.onLoading(count, current);
+                }
+            }
+        }
+
+        @Override
+        public void onSuccess(Object t) {
+            for (I_HttpRespond callback : call.finish()) {
+                callback.onSuccess(t);
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable t, int errorNo, String strMsg) {
+            for (I_HttpRespond callback : call.finish()) {
+                callback.onFailure(t, errorNo, strMsg);
+            }
+        }
     }
 
     /**
@@ -171,78 +281,47 @@ public class KJHttp {
             KJTaskExecutor<Void, Object, Object> {
         private I_HttpRespond callback;
         private String _url;
+        private CacheKey cacheKey;
         private int code;
 
-        public HttpUrlGetTask(I_HttpRespond callback, String _url) {
+        public HttpUrlGetTask(I_HttpRespond callback, String _url,
+                CacheKey cacheKey) {
             this.callback = callback;
             this._url = _url;
+            this.cacheKey = cacheKey;
         }
 
         @Override
         protected Object doInBackground(Void... params) {
             String res = null;
             if (config.isUseCache()) {
-                res = config.getCacher().get(_url);
+                res = config.getCacher().get(cacheKey);
             }
             if (res != null) { // 如果有缓存
                 return res;
             } else {
-                InputStream input = null;
-                BufferedReader reader = null;
-                StringBuilder respond = null;
+                String respond = null;
                 try {
-                    URL url = new URL(_url);
-                    HttpURLConnection conn = (HttpURLConnection) url
-                            .openConnection();
+                    // 请求头必须在连接之前设置，getResponseCode()会发起连接
+                    HttpURLConnection conn = openUrlConnection(_url, "GET");
                     conn.setUseCaches(config.isUseCache());
-                    conn.setReadTimeout(config.getReadTimeout());
-                    conn.setConnectTimeout(config.getConnectTimeOut());
-                    conn.setRequestProperty("Charset",
-                            config.getCharSet());
-                    conn.setRequestMethod("GET");
                     code = conn.getResponseCode();
-                    String cookie = config.getCookie();
-                    if (!StringUtils.isEmpty(cookie)) {
-                        conn.setRequestProperty("Cookie", cookie);
-                    }
-                    for (Map.Entry<String, String> entry : config
-                            .getHeader().entrySet()) {
-                        conn.setRequestProperty(entry.getKey(),
-                                entry.getValue());
+                    respond = readFully(conn, code,
+                            newProgressReporter(callback));
+                    if (config.isUseCache()) {
+                        // 在后台线程中写入缓存，编码与压缩内容不占用UI线程
+                        config.getCacher().add(cacheKey, respond,
+                                cacheHeaders(conn));
                     }
-                    input = conn.getInputStream();
-                    reader = new BufferedReader(
-                            new InputStreamReader(input));
-                    int i = 0, current = 0;
-                    int count = conn.getContentLength();
-                    char[] buf = new char[1024];
-                    respond = new StringBuilder();
-                    while ((i = reader.read(buf)) != -1) {
-                        respond.append(buf, 0, i);
-                        if (callback.isProgress()) {
-                            current += i;
-                            // 每次循环调用一次
-                            publishProgress(count, current);
-                        }
-                    }
-                    conn.disconnect();
                 } catch (MalformedURLException e) {
                     return e;
                 } catch (IOException e) {
                     return e;
-                } finally {
-                    FileUtils.closeIO(input, reader);
                 }
                 return respond;
             }
         }
 
-        @Override
-        protected void onProgressUpdate(Object... values) {
-            super.onProgressUpdate(values);
-            callback.onLoading((Long) values[0], (Long) values[1]);
-        }
-
         @Override
         protected void onPostExecute(Object result) {
             super.onPostExecute(result);
@@ -252,9 +331,6 @@ public class KJHttp {
                 callback.onFailure((Throwable) result, code, "IO错误");
             } else {
                 callback.onSuccess(result);
-                if (config.isUseCache()) {
-                    config.getCacher().add(_url, result.toString());
-                }
             }
         }
     }
@@ -274,7 +350,8 @@ public class KJHttp {
     public void urlPost(String url, I_HttpParams params,
             I_HttpRespond callback) {
         if (params instanceof KJStringParams) {
-            new HttpUrlPostTask(params, callback, url).execute();
+            new HttpUrlPostTask(params, callback, url, getCacheKey("POST",
+                    url, paramsBody(params))).execute();
         } else if (params instanceof KJFileParams) {
             new HttpUrlFileTask((KJFileParams) params, callback)
                     .execute(url);
@@ -299,96 +376,60 @@ public class KJHttp {
         @Override
         protected Object doInBackground(Object... urls) {
             OutputStream out = null;
-            DataInputStream in = null;
-            BufferedReader reader = null;
-            StringBuilder respond = null;
-            String BOUNDARY = "---------7d4a6d158c9"; // 定义数据分隔线
+            String respond = null;
             try {
-                URL url = new URL(urls[0].toString());
-                HttpURLConnection conn = (HttpURLConnection) url
-                        .openConnection();
-                // 发送POST请求必须设置如下两行
-                conn.setDoOutput(true);
+                MultipartEntity entity = params.getMultipartEntity();
+                final long length = entity.getContentLength();
+                // 请求头必须在连接之前设置
+                HttpURLConnection conn = openUrlConnection(
+                        urls[0].toString(), "POST");
+                conn.setRequestProperty("Content-Type", entity
+                        .getContentType().getValue());
+                conn.setInstanceFollowRedirects(true);
                 conn.setDoInput(true);
                 conn.setUseCaches(false);
-                conn.setRequestMethod("POST");
-                conn.setReadTimeout(config.getReadTimeout());
-                conn.setConnectTimeout(config.getConnectTimeOut());
-                conn.setRequestProperty("Charset",
-                        config.getCharSet());
-                conn.setInstanceFollowRedirects(true);
-                code = conn.getResponseCode();
-                conn.setRequestProperty("connection", "Keep-Alive");
-                conn.setRequestProperty("Content-Type",
-                        "multipart/form-data; boundary=" + BOUNDARY);
-                String cookie = config.getCookie();
-                if (!StringUtils.isEmpty(cookie)) {
-                    conn.setRequestProperty("Cookie", cookie);
-                }
-                for (Map.Entry<String, String> entry : config
-                        .getHeader().entrySet()) {
-                    conn.setRequestProperty(entry.getKey(),
-                            entry.getValue());
+                conn.setDoOutput(true);
+                // 不让HttpURLConnection把整个请求体缓存在内存中
+                if (length >= 0 && length <= Integer.MAX_VALUE) {
+                    conn.setFixedLengthStreamingMode((int) length);
+                } else {
+                    conn.setChunkedStreamingMode(0);
                 }
-                out = new DataOutputStream(conn.getOutputStream());
-                byte[] end_data = ("\r\n--" + BOUNDARY + "--\r\n")
-                        .getBytes();// 定义最后数据分隔线
-                int leng = params.fileParams.size();
-                for (int i = 0; i < leng; i++) {
-                    StringBuilder sb = new StringBuilder();
-                    sb.append("--")
-                            .append(BOUNDARY)
-                            .append("\r\nContent-Disposition: form-data;name=\"")
-                            .append(HttpConfig.FileParamsKey)
-                            .append(i)
-                            .append("\";filename=\"")
-                            .append(HttpConfig.FileParamsName)
-                            .append("\"\r\nContent-Type:application/octet-stream\r\n\r\n");
-                    byte[] data = sb.toString().getBytes();
-                    out.write(data);
-                    in = new DataInputStream(params.fileParams.get(i));
-                    int bytes = 0;
-                    byte[] buf = new byte[1024];
-                    while ((bytes = in.read(buf)) != -1) {
-                        out.write(buf, 0, bytes);
-                    }
-                    out.write("\r\n".getBytes()); // 多个文件时，二个文件之间加入这个
+                out = conn.getOutputStream();
+                final ProgressReporter progress = newProgressReporter(callback);
+                if (progress != null) {
+                    out = new FilterOutputStream(out) {
+                        private long sent = 0;
+
+                        @Override
+                        public void write(byte[] b, int off, int len)
+                                throws IOException {
+                            out.write(b, off, len);
+                            sent += len;
+                            // 按已发送的字节数回调上传进度
+                            progress.update(length, sent);
+                        }
+                    };
                 }
-                out.write(end_data);
-                out.flush();
-
-                reader = new BufferedReader(new InputStreamReader(
-                        conn.getInputStream()));
-                respond = new StringBuilder();
-                int i = 0;
-                int current = 0;
-                int count = conn.getContentLength();
-                char[] buf = new char[512];
-                while ((i = reader.read(buf)) != -1) {
-                    respond.append(buf, 0, i);
-                    if (callback.isProgress()) {
-                        current += i;
-                        // 每次循环调用一次
-                        publishProgress(count, current);
-                    }
+                entity.writeTo(out);
+                out.close();
+                out = null;
+                if (progress != null) {
+                    progress.finish();
                 }
-                conn.disconnect();
+
+                code = conn.getResponseCode();
+                respond = readFully(conn, code, null);
             } catch (MalformedURLException e) {
                 return e;
             } catch (IOException e) {
                 return e;
             } finally {
-                FileUtils.closeIO(out, in, reader);
+                FileUtils.closeIO(out);
             }
             return respond;
         }
 
-        @Override
-        protected void onProgressUpdate(Object... values) {
-            super.onProgressUpdate(values);
-            callback.onLoading((Long) values[0], (Long) values[1]);
-        }
-
         @Override
         protected void onPostExecute(Object result) {
             super.onPostExecute(result);
@@ -410,95 +451,63 @@ public class KJHttp {
         private I_HttpRespond callback;
         private I_HttpParams params;
         private String _url;
+        private CacheKey cacheKey;
         private int code;
 
         public HttpUrlPostTask(I_HttpParams param,
-                I_HttpRespond callback, String _url) {
+                I_HttpRespond callback, String _url, CacheKey cacheKey) {
             this.callback = callback;
             this.params = param;
             this._url = _url;
+            this.cacheKey = cacheKey;
         }
 
         @Override
         protected Object doInBackground(Void... _void) {
             String res = null;
             if (config.isUseCache()) {
-                res = config.getCacher().get(_url);
+                res = config.getCacher().get(cacheKey);
             }
             if (res != null) { // 如果有缓存
                 return res;
             } else {
                 DataOutputStream out = null;
-                InputStream input = null;
-                BufferedReader reader = null;
-                StringBuilder respond = null;
+                String respond = null;
                 try {
-                    URL url = new URL(_url);
-                    HttpURLConnection conn = (HttpURLConnection) url
-                            .openConnection();
-                    conn.setReadTimeout(config.getReadTimeout());
-                    conn.setConnectTimeout(config.getConnectTimeOut());
-                    conn.setRequestProperty("Charset",
-                            config.getCharSet());
+                    HttpURLConnection conn = openUrlConnection(_url,
+                            "POST");
                     conn.setRequestProperty("Content-Type",
                             config.getContentType());
                     conn.setInstanceFollowRedirects(true);
-                    conn.setDoOutput(true);
                     conn.setDoInput(true);
-                    conn.setRequestMethod("POST");
                     conn.setUseCaches(false);
+                    conn.setDoOutput(true);
+                    // 请求体长度已知，使用固定长度发送，不必由系统先缓冲整个请求体
+                    byte[] body = params == null ? new byte[0] : params
+                            .toString().getBytes("UTF-8");
+                    conn.setFixedLengthStreamingMode(body.length);
+                    out = new DataOutputStream(conn.getOutputStream());
+                    out.write(body);
+                    out.flush();
                     code = conn.getResponseCode();
-                    String cookie = config.getCookie();
-                    if (!StringUtils.isEmpty(cookie)) {
-                        conn.setRequestProperty("Cookie", cookie);
-                    }
-                    for (Map.Entry<String, String> entry : config
-                            .getHeader().entrySet()) {
-                        conn.setRequestProperty(entry.getKey(),
-                                entry.getValue());
-                    }
-                    conn.connect();
-                    if (params != null) {
-                        out = new DataOutputStream(
-                                conn.getOutputStream());
-                        out.writeBytes(params.toString());
-                        out.flush();
+                    respond = readFully(conn, code,
+                            newProgressReporter(callback));
+                    if (config.isUseCache()) {
+                        // 在后台线程中写入缓存，编码与压缩内容不占用UI线程
+                        config.getCacher().add(cacheKey, respond,
+                                cacheHeaders(conn));
                     }
-
-                    input = conn.getInputStream();
-                    reader = new BufferedReader(
-                            new InputStreamReader(input));
-                    respond = new StringBuilder();
-                    int i = 0;
-                    int current = 0;
-                    int count = conn.getContentLength();
-                    char[] buf = new char[1024];
-                    while ((i = reader.read(buf)) != -1) {
-                        respond.append(buf, 0, i);
-                        if (callback.isProgress()) {
-                            current += i;
-                            // 每次循环调用一次
-                            publishProgress(count, current);
-                        }
-                    }
-                    conn.disconnect();
                 } catch (MalformedURLException e) {
                     return e;
                 } catch (IOException e) {
                     return e;
                 } finally {
-                    FileUtils.closeIO(out, input, reader);
+                    FileUtils.closeIO(out);
                 }
                 return respond;
             }
         }
 
-        @Override
-        protected void onProgressUpdate(Object... values) {
-            super.onProgressUpdate(values);
-            callback.onLoading((Long) values[0], (Long) values[1]);
-        }
-
         @Override
         protected void onPostExecute(Object result) {
             super.onPostExecute(result);
@@ -508,13 +517,114 @@ public class KJHttp {
                 callback.onFailure((Throwable) result, code, "IO错误");
             } else {
                 callback.onSuccess(result);
-                if (config.isUseCache()) {
-                    config.getCacher().add(_url, result.toString());
+            }
+        }
+    }
+
+    /**
+     * 按配置器中的回调间隔与百分比步长创建进度分发器
+     * 
+     * @return 回调没有开启进度时返回null
+     */
+    private ProgressReporter newProgressReporter(I_HttpRespond callback) {
+        if (callback == null || !callback.isProgress()) {
+            return null;
+        }
+        return new ProgressReporter(callback, config.getProgressInterval(),
+                config.getProgressStep());
+    }
+
+    /**
+     * 打开一个HttpURLConnection并设置超时与请求头，此时还没有发起连接
+     */
+    private HttpURLConnection openUrlConnection(String url, String method)
+            throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url)
+                .openConnection();
+        conn.setReadTimeout(config.getReadTimeout());
+        conn.setConnectTimeout(config.getConnectTimeOut());
+        conn.setRequestMethod(method);
+        conn.setRequestProperty("Charset", config.getCharSet());
+        String cookie = config.getCookie();
+        if (!StringUtils.isEmpty(cookie)) {
+            conn.setRequestProperty("Cookie", cookie);
+        }
+        for (Map.Entry<String, String> entry : config.getHeader()
+                .entrySet()) {
+            conn.setRequestProperty(entry.getKey(), entry.getValue());
+        }
+        return conn;
+    }
+
+    /**
+     * 读取HttpURLConnection的全部响应内容并关闭输入流<br>
+     * 响应读到末尾并关闭后连接回到连接池，供后续请求复用，调用者不应再调用disconnect()；
+     * 请求失败（code不小于400）时读完错误流后抛出IOException
+     * 
+     * @param code
+     *            响应码
+     * @param progress
+     *            下载进度的分发器，为null时不回调进度
+     */
+    private String readFully(HttpURLConnection conn, int code,
+            ProgressReporter progress) throws IOException {
+        InputStream input = getResponseStream(conn, code);
+        byte[] buf = ByteArrayPool.getDefault().getBuf(IO_BUFFER_SIZE);
+        try {
+            int count = conn.getContentLength();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                    count > 0 ? count : 1024);
+            int i = 0, current = 0;
+            while ((i = input.read(buf)) != -1) {
+                bytes.write(buf, 0, i);
+                if (progress != null) {
+                    current += i;
+                    progress.update(count, current);
                 }
             }
+            if (progress != null) {
+                progress.finish();
+            }
+            return bytes.toString(config.getCharSet());
+        } finally {
+            ByteArrayPool.getDefault().returnBuf(buf);
+            FileUtils.closeIO(input);
         }
     }
 
+    /**
+     * 取得响应的输入流；请求失败时先读完并关闭错误流，使连接仍然可以复用，再抛出异常
+     */
+    private static InputStream getResponseStream(HttpURLConnection conn,
+            int code) throws IOException {
+        if (code < HttpURLConnection.HTTP_BAD_REQUEST) {
+            return conn.getInputStream();
+        }
+        InputStream error = conn.getErrorStream();
+        if (error != null) {
+            byte[] buf = ByteArrayPool.getDefault().getBuf(IO_BUFFER_SIZE);
+            try {
+                while (error.read(buf) != -1) {
+                }
+            } finally {
+                ByteArrayPool.getDefault().returnBuf(buf);
+                error.close();
+            }
+        }
+        throw new IOException("http response code " + code);
+    }
+
+    /**
+     * 解析HttpURLConnection响应中与缓存有关的响应头
+     */
+    private static CacheHeaders cacheHeaders(HttpURLConnection conn) {
+        return CacheHeaders.parse(conn.getHeaderField("Cache-Control"),
+                conn.getHeaderField("Expires"),
+                conn.getHeaderField("Date"), conn.getHeaderField("Age"),
+                conn.getHeaderField("ETag"),
+                conn.getHeaderField("Last-Modified"));
+    }
+
     /*********************** HttpURLConnection 下载 *************************/
 
     /**
@@ -645,9 +755,12 @@ public class KJHttp {
     /**************************** HttpClient method ******************************/
 
     private DefaultHttpClient httpClient;
-    private ThreadPoolExecutor threadPool;
+    /** 按优先级与主机调度请求，线程数不超过最大并发连接数 */
+    private HttpDispatcher dispatcher;
     private HttpContext httpContext;
     private Map<Context, List<WeakReference<Future<?>>>> requestMap;
+    /** 正在进行的HttpClient get请求，用于合并相同的请求 */
+    private final SingleFlight<HttpCallBack> inFlightGets = new SingleFlight<HttpCallBack>();
 
     /**
      * 初始化httpClient
@@ -728,8 +841,8 @@ public class KJHttp {
                         }
                     }
                 });
-        threadPool = (ThreadPoolExecutor) KJThreadExecutors
-                .newCachedThreadPool();
+        dispatcher = new HttpDispatcher(config.getMaxConnections(),
+                config.getMaxRequestsPerHost());
         httpClient.setHttpRequestRetryHandler(new RetryHandler(config
                 .getReadTimeout()));
         requestMap = new WeakHashMap<Context, List<WeakReference<Future<?>>>>();
@@ -873,22 +986,264 @@ public class KJHttp {
 
     public void get(Context context, String url,
             KJStringParams params, HttpCallBack callback) {
+        CacheKey key = getCacheKey(url, params);
         if (params != null) {
             StringBuilder str = new StringBuilder(url);
             str.append("?").append(params.toString());
             url = str.toString();
         }
 
+        if (callback == null) {
+            // 与其他get请求使用同一个指纹，不以原始url另存一份
+            sendRequest(httpClient, httpContext, new HttpGet(url), null,
+                    key, null, context);
+            return;
+        }
+        bindConverter(callback, key);
+        CachePolicy policy = config.isUseCache() ? config
+                .getCachePolicy() : CachePolicy.NETWORK_ONLY;
         String res = null;
-        if (config.isUseCache()) {
-            res = config.getCacher().get(url);
+        Object decoded = null;
+        switch (policy) {
+        case CACHE_FIRST:
+            decoded = getDecoded(callback, true);
+            if (decoded != null) {
+                callback.onSuccess(decoded);
+                break;
+            }
+            res = config.getCacher().get(key);
+            if (res != null) { // 如果有缓存
+                deliverCached(callback, res, context);
+            } else {
+                sendCoalescedGet(url, key, callback, context);
+            }
+            break;
+        case STALE_WHILE_REVALIDATE:
+            decoded = getDecoded(callback, true);
+            if (decoded != null) {
+                callback.onSuccess(decoded);
+                break;
+            }
+            res = config.getCacher().get(key);
+            if (res != null) {
+                deliverCached(callback, res, context);
+                break;
+            }
+            decoded = getDecoded(callback, false);
+            if (decoded != null) {
+                callback.onSuccess(decoded);
+                revalidate(url, key, config.getCacher().getEntry(key),
+                        config.isNotifyRevalidated() ? callback : null,
+                        context, Priority.BACKGROUND);
+                break;
+            }
+            res = config.getCacher().getDataFromCache(key);
+            if (res != null) {
+                // 先用过期的缓存响应，再在后台刷新
+                deliverCached(callback, res, context);
+                revalidate(url, key, res,
+                        config.isNotifyRevalidated() ? callback : null,
+                        context, Priority.BACKGROUND);
+            } else {
+                sendCoalescedGet(url, key, callback, context);
+            }
+            break;
+        case CACHE_THEN_NETWORK:
+            decoded = getDecoded(callback, false);
+            if (decoded != null) {
+                callback.onSuccess(decoded);
+                revalidate(url, key, config.getCacher().getEntry(key),
+                        callback, context, callback.getPriority());
+                break;
+            }
+            res = config.getCacher().getDataFromCache(key);
+            if (res != null) {
+                deliverCached(callback, res, context);
+                revalidate(url, key, res, callback, context,
+                        callback.getPriority());
+            } else {
+                sendCoalescedGet(url, key, callback, context);
+            }
+            break;
+        default:
+            sendCoalescedGet(url, key, callback, context);
+            break;
         }
-        if (res != null && callback != null) { // 如果有缓存
-            callback.onSuccess(res);
+    }
+
+    /**
+     * 发起get请求，相同的请求正在进行时只加入等待结果；每个回调可以通过cancelRequests单独取消，
+     * 全部取消后才会中断网络请求
+     */
+    private void sendCoalescedGet(String url, CacheKey key,
+            HttpCallBack callback, Context context) {
+        if (callback instanceof StreamCallBack) {
+            // 响应流只能由一个回调读取，不与其他请求合并
+            sendRequest(httpClient, httpContext, conditionalGet(url, key),
+                    null, key, callback, context);
+            return;
+        }
+        addToRequestMap(context, submitCoalescedGet(url, key, callback,
+                callback.getPriority()));
+    }
+
+    private SingleFlight.Subscription<HttpCallBack> submitCoalescedGet(
+            String url, CacheKey key, HttpCallBack callback,
+            Priority priority) {
+        SingleFlight.Subscription<HttpCallBack> subscription = inFlightGets
+                .join(SingleFlight.key("GET", url, config.getHeader()),
+                        callback);
+        SingleFlight.Call<HttpCallBack> call = subscription.getCall();
+        if (call.claimStart()) {
+            call.raisePriority(priority);
+            HttpGet request = conditionalGet(url, key);
+            Future<?> future = dispatcher.submit(new AsyncHttpRequest(
+                    httpClient, httpContext, request, new CoalescedCallBack(
+                            call), key), priority, request.getURI()
+                    .getHost());
+            call.setFuture(future);
+            // 提交期间加入的订阅者可能要求了更高的优先级
+            dispatcher.promote(future, call.getPriority());
         } else {
-            sendRequest(httpClient, httpContext, new HttpGet(url),
-                    null, callback, context);
+            // 加入已有的请求（例如后台刷新）时，不能让高优先级的请求等在低优先级的队列中
+            dispatcher.promote(call.raisePriority(priority), priority);
         }
+        return subscription;
+    }
+
+    /**
+     * 已经用缓存响应过的get请求，再访问一次网络刷新缓存（响应会由HttpCallBack写入缓存）
+     * 
+     * @param cached
+     *            已经回调给调用者的缓存内容
+     * @param callback
+     *            网络返回的内容与cached不同时再次回调，为null时只刷新缓存
+     * @param priority
+     *            网络请求的优先级
+     */
+    private void revalidate(String url, CacheKey key, String cached,
+            HttpCallBack callback, Context context, Priority priority) {
+        addToRequestMap(context, submitCoalescedGet(url, key,
+                new RevalidateCallBack(cached, null, callback), priority));
+    }
+
+    /**
+     * 已经用缓存的解码结果响应过的get请求，再访问一次网络刷新缓存
+     * 
+     * @param cached
+     *            解码结果所属的缓存条目，网络返回后才在后台线程中读取它的内容做比较
+     */
+    private void revalidate(String url, CacheKey key, CacheBean cached,
+            HttpCallBack callback, Context context, Priority priority) {
+        addToRequestMap(context, submitCoalescedGet(url, key,
+                new RevalidateCallBack(null, cached, callback), priority));
+    }
+
+    /**
+     * 刷新缓存请求的回调：只在内容变化时通知调用者，失败时调用者已经拿到了缓存内容，不再回调
+     */
+    private static class RevalidateCallBack extends HttpCallBack {
+        private final String cached;
+        private final CacheBean cachedEntry;
+        private final HttpCallBack callback;
+
+        /**
+         * @param cached
+         *            已经回调的缓存内容
+         * @param cachedEntry
+         *            cached为null时，已经回调的缓存条目，需要比较时才读取它的内容
+         */
+        public RevalidateCallBack(String cached, CacheBean cachedEntry,
+                HttpCallBack callback) {
+            this.cached = cached;
+            this.cachedEntry = cachedEntry;
+            this.callback = callback;
+        }
+
+        @Override
+        protected void sendSuccessMessage(int status, Header[] headers,
+                String responseBody) {
+            if (callback == null || responseBody == null) {
+                return;
+            }
+            String old = cached;
+            if (old == null && cachedEntry != null) {
+                old = cachedEntry.getJson();
+            }
+            if (!responseBody.equals(old)) {
+                callback.sendSuccessMessage(status, headers, responseBody);
+            }
+        }
+
+        @Override
+        protected void sendFailureMessage(Throwable e,
+                String responseBody, int status) {}
+
+        @Override
+        public void onLoading(long count, long current) {}
+
+        @Override
+        public void onSuccess(Object t) {}
+
+        @Override
+        public void onFailure(Throwable t, int errorNo, String strMsg) {}
+    }
+
+    /**
+     * 创建get请求，如果有已过期的缓存，带上它的ETag与Last-Modified发起条件请求，
+     * 内容没有变化时服务器只返回304，不再传输数据
+     */
+    private HttpGet conditionalGet(String url, CacheKey key) {
+        HttpGet request = new HttpGet(url);
+        if (config.isUseCache()) {
+            CacheBean entry = config.getCacher().getEntry(key);
+            if (entry != null) {
+                if (!StringUtils.isEmpty(entry.getEtag())) {
+                    request.setHeader("If-None-Match", entry.getEtag());
+                }
+                if (!StringUtils.isEmpty(entry.getLastModified())) {
+                    request.setHeader("If-Modified-Since",
+                            entry.getLastModified());
+                }
+            }
+        }
+        return request;
+    }
+
+    /**
+     * 把一次HttpClient请求的结果分发给所有相同请求的回调，每个回调通过自己的handler回到各自的线程
+     */
+    private static class CoalescedCallBack extends HttpCallBack {
+        private final SingleFlight.Call<HttpCallBack> call;
+
+        public CoalescedCallBack(SingleFlight.Call<HttpCallBack> call) {
+            this.call = call;
+        }
+
+        @Override
+        protected void sendSuccessMessage(int status, Header[] headers,
+                String responseBody) {
+            for (HttpCallBack callback : call.finish()) {
+                callback.sendSuccessMessage(status, headers, responseBody);
+            }
+        }
+
+        @Override
+        protected void sendFailureMessage(Throwable e,
+                String responseBody, int status) {
+            for (HttpCallBack callback : call.finish()) {
+                callback.sendFailureMessage(e, responseBody, status);
+            }
+        }
+
+        @Override
+        public void onLoading(long count, long current) {}
+
+        @Override
+        public void onSuccess(Object t) {}
+
+        @Override
+        public void onFailure(Throwable t, int errorNo, String strMsg) {}
     }
 
     /************************* HttpClient post请求 *************************/
@@ -903,24 +1258,16 @@ public class KJHttp {
 
     public void post(Context context, String url,
             I_HttpParams params, HttpCallBack callback) {
-        post(context, url, paramsToEntity(params), null, callback);
+        sendWithCache(new HttpPost(url), paramsToEntity(params), null,
+                getCacheKey("POST", url, paramsBody(params)), callback,
+                context);
     }
 
     public void post(Context context, String url, HttpEntity entity,
             String contentType, HttpCallBack callback) {
-        String res = null;
-        if (config.isUseCache()) {
-            res = config.getCacher().get(url);
-        }
-        if (res != null && callback != null) { // 如果有缓存
-            callback.onSuccess(res);
-        } else {
-            sendRequest(
-                    httpClient,
-                    httpContext,
-                    addEntityToRequestBase(new HttpPost(url), entity),
-                    contentType, callback, context);
-        }
+        sendWithCache(new HttpPost(url), entity, contentType,
+                getCacheKey("POST", url, entityBody(entity)), callback,
+                context);
     }
 
     /************************* HttpClient post请求 *************************/
@@ -935,21 +1282,43 @@ public class KJHttp {
 
     public void put(Context context, String url, I_HttpParams params,
             HttpCallBack callback) {
-        put(context, url, paramsToEntity(params), null, callback);
+        sendWithCache(new HttpPut(url), paramsToEntity(params), null,
+                getCacheKey("PUT", url, paramsBody(params)), callback,
+                context);
     }
 
     public void put(Context context, String url, HttpEntity entity,
             String contentType, HttpCallBack callback) {
+        sendWithCache(new HttpPut(url), entity, contentType,
+                getCacheKey("PUT", url, entityBody(entity)), callback,
+                context);
+    }
+
+    /**
+     * 有缓存时直接使用缓存，否则发送请求
+     * 
+     * @param key
+     *            请求指纹，为null时（请求体无法作为指纹）不读写缓存
+     */
+    private void sendWithCache(HttpEntityEnclosingRequestBase request,
+            HttpEntity entity, String contentType, CacheKey key,
+            HttpCallBack callback, Context context) {
+        bindConverter(callback, key);
+        Object decoded = getDecoded(callback, true);
+        if (decoded != null) {
+            callback.onSuccess(decoded);
+            return;
+        }
         String res = null;
-        if (config.isUseCache()) {
-            res = config.getCacher().get(url);
+        if (config.isUseCache() && key != null) {
+            res = config.getCacher().get(key);
         }
         if (res != null && callback != null) { // 如果有缓存
-            callback.onSuccess(res);
+            deliverCached(callback, res, context);
         } else {
             sendRequest(httpClient, httpContext,
-                    addEntityToRequestBase(new HttpPut(url), entity),
-                    contentType, callback, context);
+                    addEntityToRequestBase(request, entity), contentType,
+                    key, callback, context);
         }
     }
 
@@ -966,13 +1335,85 @@ public class KJHttp {
     protected void sendRequest(DefaultHttpClient client,
             HttpContext httpContext, HttpUriRequest uriRequest,
             String contentType, HttpCallBack callback, Context context) {
+        // 不知道请求体的内容，只有get请求的响应写入缓存
+        CacheKey key = "GET".equals(uriRequest.getMethod()) ? getCacheKey(
+                uriRequest.getURI().toString(), null) : null;
+        sendRequest(client, httpContext, uriRequest, contentType, key,
+                callback, context);
+    }
+
+    /**
+     * 发送一个请求
+     * 
+     * @param key
+     *            请求指纹，响应以它写入缓存；为null时不写入缓存
+     */
+    private void sendRequest(DefaultHttpClient client,
+            HttpContext httpContext, HttpUriRequest uriRequest,
+            String contentType, CacheKey key, HttpCallBack callback,
+            Context context) {
         if (contentType != null) {
             uriRequest.addHeader("Content-Type", contentType);
         }
-        Future<?> request = threadPool.submit(new AsyncHttpRequest(
-                client, httpContext, uriRequest, callback));
+        Future<?> request = dispatcher.submit(new AsyncHttpRequest(client,
+                httpContext, uriRequest, callback, key),
+                callback == null ? null : callback.getPriority(), uriRequest
+                        .getURI().getHost());
+        addToRequestMap(context, request);
+    }
+
+    /**
+     * ConverterCallBack发起请求前设置解码器与保存解码结果的内存缓存
+     */
+    private void bindConverter(HttpCallBack callback, CacheKey key) {
+        if (!(callback instanceof ConverterCallBack)) {
+            return;
+        }
+        HttpCache decodedCache = null;
+        if (config.isUseCache() && config.isCacheDecoded()
+                && config.getCacher() instanceof HttpCache) {
+            decodedCache = (HttpCache) config.getCacher();
+        }
+        ((ConverterCallBack<?>) callback).bind(config.getConverter(),
+                decodedCache, key);
+    }
+
+    /**
+     * 把缓存的内容交给回调；StreamCallBack需要在后台线程中解析，交给调度器执行
+     */
+    private void deliverCached(final HttpCallBack callback,
+            final String res, Context context) {
+        if (callback instanceof StreamCallBack) {
+            addToRequestMap(context, dispatcher.submit(new Runnable() {
+                @Override
+                public void run() {
+                    callback.sendSuccessMessage(HttpStatus.SC_OK, null, res);
+                }
+            }, callback.getPriority(), null));
+        } else {
+            callback.onSuccess(res);
+        }
+    }
+
+    /**
+     * ConverterCallBack在内存缓存中已有的解码结果，只检查缓存条目与有效期，不读取缓存内容
+     * 
+     * @param fresh
+     *            为true时只使用未过期的缓存
+     * @return 不是ConverterCallBack或没有解码结果时返回null
+     */
+    private Object getDecoded(HttpCallBack callback, boolean fresh) {
+        if (!(callback instanceof ConverterCallBack)) {
+            return null;
+        }
+        return ((ConverterCallBack<?>) callback).getDecoded(fresh);
+    }
+
+    /**
+     * 在context的请求集中添加本次请求，供cancelRequests使用
+     */
+    private void addToRequestMap(Context context, Future<?> request) {
         if (context != null) {
-            // 在请求集中添加本次请求
             List<WeakReference<Future<?>>> requestList = requestMap
                     .get(context);
             if (requestList == null) {
@@ -983,6 +1424,64 @@ public class KJHttp {
         }
     }
 
+    /**
+     * 生成get请求的缓存指纹，参数按名称排序后拼接在url之后
+     */
+    private CacheKey getCacheKey(String url, KJStringParams params) {
+        if (params != null) {
+            url = url + "?" + CacheKey.sortedParams(params.urlParams);
+        }
+        return getCacheKey("GET", url, "");
+    }
+
+    /**
+     * 生成缓存指纹，HttpConfig中指定的请求头参与指纹
+     * 
+     * @param body
+     *            请求体的规范形式，为null表示请求体无法作为指纹，此时返回null，不使用缓存
+     */
+    private CacheKey getCacheKey(String method, String url, String body) {
+        if (body == null) {
+            return null;
+        }
+        return CacheKey.create(method, url, body, config.getHeader(),
+                config.getCacheKeyHeaders());
+    }
+
+    /**
+     * 请求参数的规范形式：字符串参数按名称排序；包含文件的参数返回null
+     */
+    private static String paramsBody(I_HttpParams params) {
+        if (params == null) {
+            return "";
+        }
+        if (params instanceof KJStringParams) {
+            return CacheKey.sortedParams(((KJStringParams) params).urlParams);
+        }
+        return null;
+    }
+
+    /**
+     * 请求体的规范形式：可以重复读取、且不大于{@link #MAX_KEY_BODY_SIZE}的请求体取其原始内容，
+     * 否则返回null
+     */
+    private static String entityBody(HttpEntity entity) {
+        if (entity == null) {
+            return "";
+        }
+        long length = entity.getContentLength();
+        if (!entity.isRepeatable() || length < 0
+                || length > MAX_KEY_BODY_SIZE) {
+            return null;
+        }
+        try {
+            // 每个字节对应一个字符，不会因编码丢失差异
+            return new String(EntityUtils.toByteArray(entity), "ISO-8859-1");
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     /**
      * 将http参数转换成HttpEntity集合
      * 
@@ -1039,15 +1538,18 @@ public class KJHttp {
         private final HttpContext context;
         private final HttpUriRequest request;
         private final HttpCallBack callback;
+        /** 响应写入缓存使用的请求指纹，为null时不写入缓存 */
+        private final CacheKey cacheKey;
         private int executionCount;
 
         public AsyncHttpRequest(AbstractHttpClient client,
                 HttpContext context, HttpUriRequest request,
-                HttpCallBack callback) {
+                HttpCallBack callback, CacheKey cacheKey) {
             this.client = client;
             this.context = context;
             this.request = request;
             this.callback = callback;
+            this.cacheKey = cacheKey;
         }
 
         /**
@@ -1058,11 +1560,14 @@ public class KJHttp {
                 try {
                     HttpResponse response = client.execute(request,
                             context);
-                    if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                    int statusCode = response.getStatusLine()
+                            .getStatusCode();
+                    // 304只会是条件请求的结果，由回调用缓存的内容响应
+                    if (statusCode == HttpStatus.SC_OK
+                            || statusCode == HttpStatus.SC_NOT_MODIFIED) {
                         if (!Thread.currentThread().isInterrupted()
                                 && callback != null) {
-                            callback.sendResponseMessage(request
-                                    .getRequestLine().getUri(),
+                            callback.sendResponseMessage(cacheKey,
                                     config, response);
                         }
                     } else {
@@ -1,12 +1,12 @@
 /*
  * Copyright (c) 2014, KJFrameForAndroid 张涛 (kymjs123@gmail.com).
- * 
+ *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- * 
+ *
  * http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -16,37 +16,48 @@
 package org.kymjs.aframe.http;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.message.BasicHeader;
+import org.kymjs.aframe.core.ByteArrayPool;
+import org.kymjs.aframe.core.KJException;
 
 /**
  * 用于向网络发送http参数，这个类参考自老外的博客，并做了适当修改
  * http://blog.rafaelsanches.com/2011/01/29/upload-using-multipart-post-
  * using-httpclient-in-android/)<br>
- * 
+ *
+ * <b>说明</b> 本类只保存各个参数的描述，不会把文件读入内存：Content-Length由各部分长度直接算出，
+ * writeTo时文件内容通过固定大小的缓冲区分段写到输出流，内存占用与文件大小无关<br>
+ * <b>说明</b> 只包含字符串、byte[]、File参数时本实体是可重复的，请求失败后可以重试；
+ * 包含InputStream参数时只能发送一次，如果流的长度未知，Content-Length为-1（使用chunked方式发送）<br>
+ *
  * @author kymjs(kymjs123@gmail.com)
- * @version 1.0
+ * @version 1.1
  * @created 2014-8-14
  */
 final class MultipartEntity implements HttpEntity {
 
     private final static char[] MULTIPART_CHARS = "-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ"
             .toCharArray();
+    private static final String DEFAULT_TYPE = "application/octet-stream";
+    private static final String CHARSET = "UTF-8";
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final int BUFFER_SIZE = 4096;
 
     private String boundary = null; // 分隔符
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    boolean isSetLast = false;
-    boolean isSetFirst = false;
+    private final List<Part> parts = new ArrayList<Part>();
 
     public MultipartEntity() {
         // 使用线程安全的StringBuffer而不是StringBuilder
@@ -59,56 +70,21 @@ final class MultipartEntity implements HttpEntity {
 
     }
 
-    /**
-     * 做参数之间的分割
-     */
-    public void writeFirstBoundaryIfNeeds() {
-        if (!isSetFirst) {
-            try {
-                out.write(("--" + boundary + "\r\n").getBytes());
-            } catch (final IOException e) {
-                e.printStackTrace();
-            }
-        }
-        isSetFirst = true;
-    }
-
-    /**
-     * 做参数末尾的分割
-     */
-    public void writeLastBoundaryIfNeeds() {
-        if (isSetLast) {
-            return;
-        }
-        try {
-            out.write(("\r\n--" + boundary + "--\r\n").getBytes());
-        } catch (final IOException e) {
-            e.printStackTrace();
-        }
-        isSetLast = true;
-    }
-
     /**
      * 添加一个字符参数
-     * 
+     *
      * @param key
      * @param value
      */
     public void addPart(final String key, final String value) {
-        writeFirstBoundaryIfNeeds();
-        try {
-            out.write(("Content-Disposition: form-data; name=\"" + key + "\"\r\n\r\n")
-                    .getBytes());
-            out.write(value.getBytes());
-            out.write(("\r\n--" + boundary + "\r\n").getBytes());
-        } catch (final IOException e) {
-            e.printStackTrace();
-        }
+        parts.add(new BytesPart(
+                ("Content-Disposition: form-data; name=\"" + key + "\"\r\n\r\n"),
+                getBytes(value)));
     }
 
     /**
      * 添加一个文件参数
-     * 
+     *
      * @param key
      *            k
      * @param fileName
@@ -116,64 +92,88 @@ final class MultipartEntity implements HttpEntity {
      * @param fin
      *            文件输入流
      * @param isLast
-     *            是否为最后一个参数
+     *            已无作用，分隔符会自动处理，仅为兼容保留
      */
     public void addPart(final String key, final String fileName,
             final InputStream fin, final boolean isLast) {
-        addPart(key, fileName, fin, "application/octet-stream", isLast);
+        addPart(key, fileName, fin, DEFAULT_TYPE, isLast);
     }
 
+    /**
+     * 添加一个文件参数，流会在发送完成后关闭；包含这种参数的实体不可重复发送
+     *
+     * @param isLast
+     *            已无作用，分隔符会自动处理，仅为兼容保留
+     */
     public void addPart(final String key, final String fileName,
             final InputStream fin, String type, final boolean isLast) {
-        writeFirstBoundaryIfNeeds();
-        try {
-            type = "Content-Type: " + type + "\r\n";
-            out.write(("Content-Disposition: form-data; name=\"" + key
-                    + "\"; filename=\"" + fileName + "\"\r\n").getBytes());
-            out.write(type.getBytes());
-            out.write("Content-Transfer-Encoding: binary\r\n\r\n".getBytes());
-
-            final byte[] tmp = new byte[4096];
-            int l = 0;
-            while ((l = fin.read(tmp)) != -1) {
-                out.write(tmp, 0, l);
-            }
-            if (!isLast)
-                out.write(("\r\n--" + boundary + "\r\n").getBytes());
-            out.flush();
-        } catch (final IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                fin.close();
-            } catch (final IOException e) {
-                e.printStackTrace();
-            }
-        }
+        parts.add(new StreamPart(fileHeader(key, fileName, type), fin));
     }
 
     /**
      * 添加一个文件参数，使用默认文件名
-     * 
+     *
      * @param key
      *            k
      * @param value
      *            v
      * @param isLast
-     *            是否为最后一个参数
+     *            已无作用，分隔符会自动处理，仅为兼容保留
      */
     public void addPart(final String key, final File value, final boolean isLast) {
-        try {
-            addPart(key, value.getName(), new FileInputStream(value), isLast);
-        } catch (final FileNotFoundException e) {
-            e.printStackTrace();
-        }
+        addPart(key, value, value.getName(), DEFAULT_TYPE);
+    }
+
+    /**
+     * 添加一个文件参数，文件在发送时才被读取
+     */
+    public void addPart(final String key, final File value,
+            final String fileName, final String type) {
+        parts.add(new FilePart(fileHeader(key, fileName, type), value));
+    }
+
+    /**
+     * 添加一个byte[]类型的文件参数
+     */
+    public void addPart(final String key, final byte[] value,
+            final String fileName, final String type) {
+        parts.add(new BytesPart(fileHeader(key, fileName, type), value));
+    }
+
+    private static String fileHeader(String key, String fileName,
+            String type) {
+        return "Content-Disposition: form-data; name=\"" + key
+                + "\"; filename=\"" + fileName + "\"\r\nContent-Type: "
+                + (type == null ? DEFAULT_TYPE : type)
+                + "\r\nContent-Transfer-Encoding: binary\r\n\r\n";
+    }
+
+    private byte[] partBoundary() {
+        return getBytes("--" + boundary + "\r\n");
     }
 
+    private byte[] lastBoundary() {
+        return getBytes("--" + boundary + "--\r\n");
+    }
+
+    /**
+     * 由各部分的长度直接算出，不需要读取任何文件
+     *
+     * @return 含有长度未知的流参数时返回-1
+     */
     @Override
     public long getContentLength() {
-        writeLastBoundaryIfNeeds();
-        return out.toByteArray().length;
+        long length = 0;
+        long boundaryLength = partBoundary().length;
+        for (Part part : parts) {
+            long bodyLength = part.getLength();
+            if (bodyLength < 0) {
+                return -1;
+            }
+            length += boundaryLength + part.header.length + bodyLength
+                    + CRLF.length;
+        }
+        return length + lastBoundary().length;
     }
 
     @Override
@@ -184,22 +184,38 @@ final class MultipartEntity implements HttpEntity {
 
     @Override
     public boolean isChunked() {
-        return false;
+        return getContentLength() < 0;
     }
 
     @Override
     public boolean isRepeatable() {
-        return false;
+        for (Part part : parts) {
+            if (!part.isRepeatable()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
     public boolean isStreaming() {
-        return false;
+        return !isRepeatable();
     }
 
     @Override
     public void writeTo(final OutputStream outstream) throws IOException {
-        outstream.write(out.toByteArray());
+        if (outstream == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        byte[] boundaryBytes = partBoundary();
+        for (Part part : parts) {
+            outstream.write(boundaryBytes);
+            outstream.write(part.header);
+            part.writeTo(outstream);
+            outstream.write(CRLF);
+        }
+        outstream.write(lastBoundary());
+        outstream.flush();
     }
 
     @Override
@@ -207,18 +223,157 @@ final class MultipartEntity implements HttpEntity {
         return null;
     }
 
+    /**
+     * 关闭还没有发送的流参数
+     */
     @Override
     public void consumeContent() throws IOException,
             UnsupportedOperationException {
-        if (isStreaming()) {
-            throw new UnsupportedOperationException(
-                    "Streaming entity does not implement #consumeContent()");
+        for (Part part : parts) {
+            if (part instanceof StreamPart) {
+                ((StreamPart) part).in.close();
+            }
         }
     }
 
     @Override
     public InputStream getContent() throws IOException,
             UnsupportedOperationException {
-        return new ByteArrayInputStream(out.toByteArray());
+        throw new UnsupportedOperationException(
+                "Multipart entity does not implement #getContent()");
+    }
+
+    private static byte[] getBytes(String str) {
+        try {
+            return str.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new KJException(e);
+        }
+    }
+
+    /**
+     * 一个参数：头部信息加上内容
+     */
+    private static abstract class Part {
+        final byte[] header;
+
+        Part(String header) {
+            this.header = getBytes(header);
+        }
+
+        /** 内容长度，未知时返回-1 */
+        abstract long getLength();
+
+        abstract boolean isRepeatable();
+
+        abstract void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static final class BytesPart extends Part {
+        private final byte[] content;
+
+        BytesPart(String header, byte[] content) {
+            super(header);
+            this.content = content;
+        }
+
+        @Override
+        long getLength() {
+            return content.length;
+        }
+
+        @Override
+        boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        void writeTo(OutputStream out) throws IOException {
+            out.write(content);
+        }
+    }
+
+    private static final class FilePart extends Part {
+        private final File file;
+
+        FilePart(String header, File file) {
+            super(header);
+            this.file = file;
+        }
+
+        @Override
+        long getLength() {
+            return file.length();
+        }
+
+        @Override
+        boolean isRepeatable() {
+            return true;
+        }
+
+        /**
+         * 以固定大小的缓冲区分段读出写入，内存占用与文件大小无关，每段写入都会更新上传进度
+         */
+        @Override
+        void writeTo(OutputStream out) throws IOException {
+            FileInputStream in = new FileInputStream(file);
+            final byte[] tmp = ByteArrayPool.getDefault().getBuf(
+                    BUFFER_SIZE);
+            try {
+                int l = 0;
+                while ((l = in.read(tmp)) != -1) {
+                    out.write(tmp, 0, l);
+                }
+            } finally {
+                ByteArrayPool.getDefault().returnBuf(tmp);
+                in.close();
+            }
+        }
+    }
+
+    private static final class StreamPart extends Part {
+        private final InputStream in;
+
+        StreamPart(String header, InputStream in) {
+            super(header);
+            this.in = in;
+        }
+
+        @Override
+        long getLength() {
+            if (in instanceof ByteArrayInputStream) {
+                return ((ByteArrayInputStream) in).available();
+            }
+            if (in instanceof FileInputStream) {
+                try {
+                    FileChannel channel = ((FileInputStream) in)
+                            .getChannel();
+                    return channel.size() - channel.position();
+                } catch (IOException e) {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        void writeTo(OutputStream out) throws IOException {
+            final byte[] tmp = ByteArrayPool.getDefault().getBuf(
+                    BUFFER_SIZE);
+            try {
+                int l = 0;
+                while ((l = in.read(tmp)) != -1) {
+                    out.write(tmp, 0, l);
+                }
+            } finally {
+                ByteArrayPool.getDefault().returnBuf(tmp);
+                in.close();
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2014, KJFrameForAndroid 张涛 (kymjs123@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kymjs.aframe.http;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * 进度回调的分发器：在后台线程中记录进度，按时间间隔或百分比步长取样后在UI线程中回调onLoading<br>
+ *
+ * <b>说明</b> {@link #update(long, long)}只记录数值，距上次回调超过时间间隔、或进度增加达到百分比步长时
+ * 才向UI线程发送回调；UI线程最多只有一个待处理的回调，回调执行时读取最新的进度，
+ * 来不及处理的中间进度会被合并<br>
+ * <b>说明</b> update应由同一个线程调用；结束时调用{@link #finish()}，保证最终进度被回调<br>
+ * <b>创建时间</b> 2014-11-6
+ *
+ * @author kymjs(kymjs123@gmail.com)
+ * @version 1.0
+ */
+public final class ProgressReporter implements Runnable {
+    /** 默认的回调间隔（毫秒） */
+    public static final long DEFAULT_INTERVAL = 1000;
+    /** 默认的百分比步长 */
+    public static final int DEFAULT_PERCENT_STEP = 5;
+
+    private static Handler mainHandler;
+
+    private final I_HttpRespond callback;
+    private final long interval;
+    private final int percentStep;
+    private long count = -1;
+    private long current;
+    /** UI线程中是否已有一个待处理的回调 */
+    private boolean pending;
+    // 以下只在调用update的线程中访问
+    private long lastTime;
+    private long lastCurrent;
+
+    /**
+     * 使用默认的回调间隔与百分比步长
+     */
+    public ProgressReporter(I_HttpRespond callback) {
+        this(callback, DEFAULT_INTERVAL, DEFAULT_PERCENT_STEP);
+    }
+
+    /**
+     * @param interval
+     *            两次回调的最短间隔（毫秒），不大于0时每次update都回调
+     * @param percentStep
+     *            进度增加达到总数的该百分比时，不论间隔立即回调；不大于0或总数未知时不使用
+     */
+    public ProgressReporter(I_HttpRespond callback, long interval,
+            int percentStep) {
+        this.callback = callback;
+        this.interval = interval;
+        this.percentStep = percentStep;
+    }
+
+    /**
+     * 记录最新进度，需要时向UI线程发送回调
+     *
+     * @param count
+     *            总数，未知时为-1
+     * @param current
+     *            当前进度
+     */
+    public void update(long count, long current) {
+        synchronized (this) {
+            this.count = count;
+            this.current = current;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastTime < interval && !stepReached(count, current)) {
+            return;
+        }
+        lastTime = now;
+        lastCurrent = current;
+        post();
+    }
+
+    /**
+     * 进度结束，回调最终进度
+     */
+    public void finish() {
+        post();
+    }
+
+    private boolean stepReached(long count, long current) {
+        return percentStep > 0 && count > 0
+                && (current - lastCurrent) * 100 >= count * percentStep;
+    }
+
+    private void post() {
+        synchronized (this) {
+            if (pending) {
+                // 待处理的回调执行时会读到最新进度
+                return;
+            }
+            pending = true;
+        }
+        getMainHandler().post(this);
+    }
+
+    /**
+     * 在UI线程中回调最新进度
+     */
+    @Override
+    public void run() {
+        long count, current;
+        synchronized (this) {
+            pending = false;
+            count = this.count;
+            current = this.current;
+        }
+        callback.onLoading(count, current);
+    }
+
+    private static synchronized Handler getMainHandler() {
+        if (mainHandler == null) {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+        return mainHandler;
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2014, KJFrameForAndroid 张涛 (kymjs123@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kymjs.aframe.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.kymjs.aframe.http.HttpConfig.Priority;
+import org.kymjs.aframe.http.cache.CacheKey;
+
+/**
+ * 相同请求的合并器：同一时刻对同一个请求只发起一次网络访问，结果分发给所有订阅者<br>
+ *
+ * <b>说明</b> 请求由请求方法、规范化后的url与请求头共同标识；第一个订阅者负责发起请求，
+ * 请求结束前到达的相同请求只会加入订阅者列表<br>
+ * <b>说明</b> 每个订阅者都可以单独取消，只有全部订阅者都取消后才会真正取消网络请求<br>
+ * <b>说明</b> 请求的优先级取所有订阅者中最高的，由调用者据此调整已提交的请求<br>
+ * <b>创建时间</b> 2014-10-24
+ *
+ * @author kymjs(kymjs123@gmail.com)
+ * @version 1.0
+ */
+final class SingleFlight<T> {
+    private final ConcurrentHashMap<String, Call<T>> calls = new ConcurrentHashMap<String, Call<T>>();
+
+    /**
+     * 加入key对应的请求，没有正在进行的请求时新建一个<br>
+     * 调用者需要通过{@link Call#claimStart()}判断自己是否负责发起网络请求
+     *
+     * @return 订阅凭证，可用于单独取消本订阅者
+     */
+    Subscription<T> join(String key, T subscriber) {
+        while (true) {
+            Call<T> call = calls.get(key);
+            if (call == null) {
+                Call<T> created = new Call<T>(this, key);
+                call = calls.putIfAbsent(key, created);
+                if (call == null) {
+                    call = created;
+                }
+            }
+            Subscription<T> subscription = call.add(subscriber);
+            if (subscription != null) {
+                return subscription;
+            }
+            // 该请求刚好结束，不能再加入，重新查找
+            calls.remove(key, call);
+        }
+    }
+
+    /**
+     * 正在进行的请求数
+     */
+    int size() {
+        return calls.size();
+    }
+
+    /**
+     * 生成请求的标识：请求方法 + 规范化的url + 按名称排序的请求头
+     */
+    static String key(String method, String url, Map<String, String> headers) {
+        StringBuilder key = new StringBuilder(method).append(' ').append(
+                CacheKey.normalizeUrl(url));
+        if (headers != null && !headers.isEmpty()) {
+            for (Map.Entry<String, String> entry : new TreeMap<String, String>(
+                    headers).entrySet()) {
+                key.append('\n').append(entry.getKey()).append(':')
+                        .append(entry.getValue());
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * 一次正在进行的网络请求
+     */
+    static final class Call<T> {
+        private final SingleFlight<T> owner;
+        private final String key;
+        private final List<Subscription<T>> subscriptions = new ArrayList<Subscription<T>>(
+                2);
+        private boolean started;
+        private boolean finished;
+        private Future<?> future;
+        /** 订阅者要求的最高优先级 */
+        private Priority priority;
+
+        private Call(SingleFlight<T> owner, String key) {
+            this.owner = owner;
+            this.key = key;
+        }
+
+        private synchronized Subscription<T> add(T subscriber) {
+            if (finished) {
+                return null;
+            }
+            Subscription<T> subscription = new Subscription<T>(this,
+                    subscriber);
+            subscriptions.add(subscription);
+            return subscription;
+        }
+
+        /**
+         * 第一次调用返回true，调用者负责发起网络请求
+         */
+        synchronized boolean claimStart() {
+            if (started) {
+                return false;
+            }
+            started = true;
+            return true;
+        }
+
+        /**
+         * 记录一个订阅者要求的优先级，只升不降
+         *
+         * @return 优先级提高了并且请求已经提交时，返回需要调整的Future；否则返回null
+         */
+        synchronized Future<?> raisePriority(Priority priority) {
+            if (priority == null || this.priority != null
+                    && priority.ordinal() >= this.priority.ordinal()) {
+                return null;
+            }
+            this.priority = priority;
+            return future;
+        }
+
+        /**
+         * 订阅者要求的最高优先级，还没有订阅者指定时为null
+         */
+        synchronized Priority getPriority() {
+            return priority;
+        }
+
+        /**
+         * 设置真正执行网络请求的Future，如果所有订阅者已经取消，则立即取消它
+         */
+        void setFuture(Future<?> future) {
+            boolean cancel;
+            synchronized (this) {
+                this.future = future;
+                cancel = finished && subscriptions.isEmpty();
+            }
+            if (cancel) {
+                future.cancel(true);
+            }
+        }
+
+        /**
+         * 结束本次请求，此后相同的请求会发起新的网络访问
+         *
+         * @return 需要分发结果的订阅者，重复调用时返回空列表
+         */
+        List<T> finish() {
+            List<T> result = new ArrayList<T>();
+            synchronized (this) {
+                if (finished) {
+                    return result;
+                }
+                finished = true;
+                for (Subscription<T> subscription : subscriptions) {
+                    result.add(subscription.subscriber);
+                }
+            }
+            owner.calls.remove(key, this);
+            return result;
+        }
+
+        /**
+         * 当前仍在等待结果的订阅者
+         */
+        synchronized List<T> subscribers() {
+            List<T> result = new ArrayList<T>(subscriptions.size());
+            for (Subscription<T> subscription : subscriptions) {
+                result.add(subscription.subscriber);
+            }
+            return result;
+        }
+
+        private boolean cancel(Subscription<T> subscription,
+                boolean mayInterruptIfRunning) {
+            Future<?> toCancel = null;
+            boolean last = false;
+            synchronized (this) {
+                if (finished || !subscriptions.remove(subscription)) {
+                    return false;
+                }
+                if (subscriptions.isEmpty()) {
+                    // 最后一个订阅者也取消了，结束请求
+                    finished = true;
+                    last = true;
+                    toCancel = future;
+                }
+            }
+            if (last) {
+                owner.calls.remove(key, this);
+            }
+            if (toCancel != null) {
+                toCancel.cancel(mayInterruptIfRunning);
+            }
+            return true;
+        }
+
+        private synchronized boolean isFinished() {
+            return finished;
+        }
+
+        private synchronized Future<?> future() {
+            return future;
+        }
+    }
+
+    /**
+     * 一个订阅者的凭证，取消它只会让该订阅者收不到结果
+     */
+    static final class Subscription<T> implements Future<Object> {
+        private final Call<T> call;
+        private final T subscriber;
+        private volatile boolean cancelled;
+
+        private Subscription(Call<T> call, T subscriber) {
+            this.call = call;
+            this.subscriber = subscriber;
+        }
+
+        Call<T> getCall() {
+            return call;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (call.cancel(this, mayInterruptIfRunning)) {
+                cancelled = true;
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return cancelled || call.isFinished();
+        }
+
+        @Override
+        public Object get() throws InterruptedException,
+                ExecutionException {
+            Future<?> future = call.future();
+            return future == null ? null : future.get();
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException,
+                TimeoutException {
+            Future<?> future = call.future();
+            return future == null ? null : future.get(timeout, unit);
+        }
+    }
+}
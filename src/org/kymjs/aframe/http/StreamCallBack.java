@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2014, KJFrameForAndroid 张涛 (kymjs123@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kymjs.aframe.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.kymjs.aframe.core.ByteArrayPool;
+import org.kymjs.aframe.http.cache.CacheKey;
+
+import android.os.Message;
+
+/**
+ * 以流的方式处理响应的HttpClient请求回调类<br>
+ *
+ * <b>说明</b> {@link #onStream(InputStream, String, long, Header[])}在后台线程中调用，
+ * 直接从网络读取响应内容，可以边读边解析，只把解析结果通过{@link #onSuccess(Object)}交给调用者线程，
+ * 内存中不再同时存在整个响应的字符串；输入流由调用者按需读取，读得慢时网络读取也随之放慢<br>
+ * <b>说明</b> 启用缓存时读取的内容同时复制一份，响应读完且不超过{@link #MAX_CACHE_SIZE}时写入缓存；
+ * 响应来自缓存（包括304）、或与其他请求合并时，以缓存的内容构造输入流，同样在后台线程中解析<br>
+ * <b>说明</b> 使用该回调的get请求不与相同的请求合并，每个请求单独访问网络<br>
+ * <b>创建时间</b> 2014-11-4
+ *
+ * @author kymjs(kymjs123@gmail.com)
+ * @version 1.0
+ */
+public abstract class StreamCallBack extends HttpCallBack {
+    /** 超过该大小的响应不写入缓存，避免为缓存在内存中保留整个响应 */
+    public static final int MAX_CACHE_SIZE = 1024 * 1024;
+    /** 解析完成的消息，obj为{状态码, 响应头, 解析结果} */
+    protected static final int MESSAGE_RESULT = 2;
+
+    /**
+     * 在后台线程中解析响应，返回值会在调用者线程中传给{@link #onSuccess(Object)}<br>
+     * 不需要关闭输入流；返回后剩余的内容会被丢弃，启用缓存时则先读完剩余内容再写入缓存
+     *
+     * @param in
+     *            响应内容
+     * @param charset
+     *            响应内容的字符编码，响应没有声明时为UTF-8
+     * @param contentLength
+     *            响应的长度，未知时为-1
+     * @param headers
+     *            响应头，内容来自缓存时为空数组
+     * @throws Exception
+     *             解析失败时抛出，会回调onFailure
+     */
+    protected abstract Object onStream(InputStream in, String charset,
+            long contentLength, Header[] headers) throws Exception;
+
+    /**
+     * 解析完成后在后台线程中调用，响应已经写入缓存，供子类使用解析结果
+     */
+    void onParsed(Object result) {}
+
+    /**
+     * 进度回调，必须调用了setProgress(true)，该方法才会回调
+     */
+    @Override
+    public void onLoading(long count, long current) {}
+
+    /**
+     * 网络请求异常后回调
+     */
+    @Override
+    public void onFailure(Throwable t, int errorNo, String strMsg) {}
+
+    @Override
+    protected void handleMessage(Message msg) {
+        if (msg.what == MESSAGE_RESULT) {
+            onSuccess(((Object[]) msg.obj)[2]);
+        } else {
+            super.handleMessage(msg);
+        }
+    }
+
+    @Override
+    void sendResponseMessage(CacheKey key, HttpConfig config,
+            HttpResponse response) {
+        int status = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        if (status >= 300 || entity == null) {
+            // 失败、304与没有内容的响应仍按字符串处理
+            super.sendResponseMessage(key, config, response);
+            return;
+        }
+        TeeInputStream in = null;
+        try {
+            boolean cache = config.isUseCache() && key != null;
+            String charset = EntityUtils.getContentCharSet(entity);
+            if (charset == null) {
+                charset = "UTF-8";
+            }
+            in = new TeeInputStream(entity.getContent(), cache ? MAX_CACHE_SIZE
+                    : 0);
+            Object result = onStream(in, charset, entity.getContentLength(),
+                    response.getAllHeaders());
+            if (cache) {
+                // 解析器读到结尾的符号就会停止，剩下的空白等内容也要读完才能写入缓存
+                in.drain();
+            }
+            if (cache && in.isComplete()) {
+                config.getCacher().add(key, in.copy(charset),
+                        cacheHeaders(response));
+            }
+            onParsed(result);
+            sendResultMessage(status, response.getAllHeaders(), result);
+        } catch (Exception e) {
+            sendFailureMessage(e, (String) null);
+        } finally {
+            if (in != null) {
+                try {
+                    // 对HttpClient的响应流，关闭时会释放连接
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 内容已经是字符串（来自缓存、304或合并的请求）时，在当前线程中以它构造输入流解析
+     */
+    @Override
+    protected void sendSuccessMessage(int status, Header[] headers,
+            String responseBody) {
+        if (headers == null) {
+            headers = new Header[0];
+        }
+        try {
+            byte[] bytes = responseBody == null ? new byte[0] : responseBody
+                    .getBytes("UTF-8");
+            Object result = onStream(new ByteArrayInputStream(bytes),
+                    "UTF-8", bytes.length, headers);
+            onParsed(result);
+            sendResultMessage(status, headers, result);
+        } catch (Exception e) {
+            sendFailureMessage(e, (String) null);
+        }
+    }
+
+    private void sendResultMessage(int status, Header[] headers,
+            Object result) {
+        sendMessage(obtainMessage(MESSAGE_RESULT,
+                new Object[] { Integer.valueOf(status), headers, result }));
+    }
+
+    /**
+     * 读取时把内容复制一份的输入流，复制的内容超过上限后放弃复制
+     */
+    private static final class TeeInputStream extends FilterInputStream {
+        /** 读完剩余内容使用的缓冲区大小，缓冲区从ByteArrayPool中复用 */
+        private static final int DRAIN_BUFFER_SIZE = 4 * 1024;
+        private final int limit;
+        private ByteArrayOutputStream copy;
+        private boolean eof;
+
+        TeeInputStream(InputStream in, int limit) {
+            super(in);
+            this.limit = limit;
+            if (limit > 0) {
+                copy = new ByteArrayOutputStream();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                eof = true;
+            } else if (copy != null) {
+                copy.write(b);
+                checkLimit();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count)
+                throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n == -1) {
+                eof = true;
+            } else if (copy != null) {
+                copy.write(buffer, offset, n);
+                checkLimit();
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // 跳过的内容没有复制，放弃写入缓存
+            copy = null;
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void checkLimit() {
+            if (copy.size() > limit) {
+                copy = null;
+            }
+        }
+
+        /**
+         * 仍在复制时读完剩余的内容，剩余内容最多读到复制上限
+         */
+        void drain() throws IOException {
+            byte[] buf = ByteArrayPool.getDefault().getBuf(DRAIN_BUFFER_SIZE);
+            try {
+                while (copy != null && read(buf, 0, buf.length) != -1) {
+                }
+            } finally {
+                ByteArrayPool.getDefault().returnBuf(buf);
+            }
+        }
+
+        /**
+         * 内容是否已读完并且完整复制
+         */
+        boolean isComplete() {
+            return eof && copy != null;
+        }
+
+        String copy(String charset) throws UnsupportedEncodingException {
+            return copy.toString(charset);
+        }
+    }
+}
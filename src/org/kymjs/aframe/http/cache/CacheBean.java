@@ -15,13 +15,25 @@
  */
 package org.kymjs.aframe.http.cache;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
 import org.kymjs.aframe.database.annotate.Id;
 import org.kymjs.aframe.database.annotate.Table;
+import org.kymjs.aframe.database.annotate.Transient;
 
 /**
  * 一个Cache的JavaBean类<br>
  * 
  * <b>说明</b> 这是一个私有类，开发者不应该访问.<br>
+ * <b>说明</b> 缓存内容可以用DEFLATE压缩保存：压缩后json为null，内容保存在deflated中，
+ * 数据库中以BLOB保存在json列；读取时才解压，且每次读取都重新解压，不保留解压结果<br>
+ * <b>说明</b> 较大的内容保存在文件中（见HttpCacheFiles），从数据库读出的这类缓存只有bodyFile，
+ * 读取内容时才读文件<br>
  * <b>创建时间</b> 2014-9-3
  * 
  * @author kymjs(kymjs123@gmail.com)
@@ -35,8 +47,30 @@ public final class CacheBean {
     long createTime; // 创建时间
     long effectiveTime; // 有效期
     long overdueTime; // 过期时间
+    String urlHash; // 请求指纹的散列，内存与数据库中以它为索引（数据库中建立唯一索引）
+    String cacheKey; // 完整的请求指纹，读取时比对以排除散列冲突
     String url;
-    String json;
+    String json; // 未压缩的缓存内容
+    boolean compressed; // 缓存内容是否以DEFLATE压缩保存
+    byte[] deflated; // 压缩后的缓存内容，不是数据库中单独的列
+    String bodyFile; // 保存缓存内容的文件名，内容保存在数据库中时为null
+    File spillFile; // bodyFile对应的文件，不是数据库中的列
+    private Object decodedBy; // 解码缓存内容的解码器，不是数据库中的列
+    private Object decoded; // 缓存内容的解码结果，只保存在内存中
+    String etag; // 服务器返回的ETag，用于过期后的条件请求
+    String lastModified; // 服务器返回的Last-Modified，用于过期后的条件请求
+    long lastAccessTime; // 最后一次被读取的时间，用于按lru淘汰数据库中的缓存
+    long size; // 缓存内容保存时的字节数（压缩后的大小），写入时计算一次，用于统计缓存大小
+
+    // KJDB不区分静态字段，常量必须标注为非数据库字段，否则会成为表中的列
+    /** 小于该字节数的内容压缩收益很小，不压缩 */
+    @Transient
+    private static final int COMPRESS_MIN_SIZE = 256;
+    @Transient
+    private static final String CHARSET = "UTF-8";
+    /** 内容保存在文件中的缓存在内存缓存中按该大小计算 */
+    @Transient
+    private static final int FILE_ENTRY_SIZE = 256;
 
     public int getId() {
         return id;
@@ -70,6 +104,22 @@ public final class CacheBean {
         this.overdueTime = overdueTime;
     }
 
+    public String getUrlHash() {
+        return urlHash;
+    }
+
+    public void setUrlHash(String urlHash) {
+        this.urlHash = urlHash;
+    }
+
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    public void setCacheKey(String cacheKey) {
+        this.cacheKey = cacheKey;
+    }
+
     public String getUrl() {
         return url;
     }
@@ -78,11 +128,208 @@ public final class CacheBean {
         this.url = url;
     }
 
+    /**
+     * 缓存内容，压缩保存时在此解压
+     * 
+     * @return 压缩的内容无法解压时返回null
+     */
     public String getJson() {
-        return json;
+        if (!hasBodyInMemory() && spillFile != null) {
+            return compressed ? inflate(HttpCacheFiles.readBytes(spillFile))
+                    : HttpCacheFiles.readString(spillFile);
+        }
+        return compressed ? inflate(deflated) : json;
     }
 
+    /**
+     * 不压缩地保存缓存内容
+     */
     public void setJson(String json) {
+        setBody(json, false);
+    }
+
+    /**
+     * 保存缓存内容并计算其字节数
+     * 
+     * @param compress
+     *            为true且内容足够大、压缩后确实变小时，以DEFLATE压缩保存
+     */
+    void setBody(String json, boolean compress) {
         this.json = json;
+        this.compressed = false;
+        this.deflated = null;
+        this.bodyFile = null;
+        this.spillFile = null;
+        setDecoded(null, null);
+        if (json == null) {
+            size = 0;
+            return;
+        }
+        byte[] bytes = encode(json);
+        size = bytes.length;
+        if (compress && bytes.length >= COMPRESS_MIN_SIZE) {
+            byte[] data = deflate(bytes);
+            if (data.length < bytes.length) {
+                this.json = null;
+                this.compressed = true;
+                this.deflated = data;
+                size = data.length;
+            }
+        }
+    }
+
+    /**
+     * 复制另一个缓存的内容（不解压）
+     */
+    void copyBody(CacheBean other) {
+        json = other.json;
+        compressed = other.compressed;
+        deflated = other.deflated;
+        bodyFile = other.bodyFile;
+        spillFile = other.spillFile;
+        size = other.size;
+        synchronized (other) {
+            decodedBy = other.decodedBy;
+            decoded = other.decoded;
+        }
+    }
+
+    /**
+     * 缓存内容由converter解码的结果
+     * 
+     * @return 还没有用该解码器解码过时返回null
+     */
+    synchronized Object getDecoded(Object converter) {
+        return converter != null && converter == decodedBy ? decoded : null;
+    }
+
+    /**
+     * 保存缓存内容的解码结果，只保留最后一个解码器的结果
+     */
+    synchronized void setDecoded(Object converter, Object value) {
+        decodedBy = converter;
+        decoded = value;
+    }
+
+    /**
+     * 缓存内容是否在内存中（否则在文件中，或者没有内容）
+     */
+    boolean hasBodyInMemory() {
+        return json != null || deflated != null;
+    }
+
+    /**
+     * 在内存缓存中占用的大小，内容保存在文件中时只计算很小的固定开销
+     */
+    int memorySize() {
+        return hasBodyInMemory() ? (int) size : FILE_ENTRY_SIZE;
+    }
+
+    /**
+     * 保存时的字节：压缩时为压缩后的数据，否则为UTF-8编码；内容必须在内存中
+     */
+    byte[] storedBytes() {
+        return compressed ? deflated : encode(json);
+    }
+
+    public String getBodyFile() {
+        return bodyFile;
+    }
+
+    public void setBodyFile(String bodyFile) {
+        this.bodyFile = bodyFile;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public long getLastAccessTime() {
+        return lastAccessTime;
+    }
+
+    public void setLastAccessTime(long lastAccessTime) {
+        this.lastAccessTime = lastAccessTime;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    private static byte[] encode(String json) {
+        try {
+            return json.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) { // UTF-8总是支持的
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    bytes.length / 4 + 64);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end(); // 及时释放native内存
+        }
+    }
+
+    private static String inflate(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    data.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput()
+                        || inflater.needsDictionary())) {
+                    return null; // 数据不完整
+                }
+                out.write(buffer, 0, count);
+            }
+            return new String(out.toByteArray(), CHARSET);
+        } catch (DataFormatException e) {
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
     }
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2014, KJFrameForAndroid 张涛 (kymjs123@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kymjs.aframe.http.cache;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * 一个http响应中与缓存有关的响应头<br>
+ *
+ * <b>说明</b> 解析Cache-Control(max-age、no-store、no-cache)、Expires、Age、Date，
+ * 得出服务器指定的有效期；同时保存ETag与Last-Modified，供过期后发起条件请求<br>
+ * <b>创建时间</b> 2014-10-27
+ *
+ * @author kymjs(kymjs123@gmail.com)
+ * @version 1.0
+ */
+public final class CacheHeaders {
+    /** 服务器没有指定有效期 */
+    public static final long NO_MAX_AGE = -1;
+
+    private static final String HTTP_DATE = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private boolean noStore;
+    private boolean noCache;
+    private long maxAge = NO_MAX_AGE;
+    private String etag;
+    private String lastModified;
+
+    /**
+     * 解析响应头，参数为对应响应头的值，没有该响应头时传null
+     */
+    public static CacheHeaders parse(String cacheControl, String expires,
+            String date, String age, String etag, String lastModified) {
+        CacheHeaders headers = new CacheHeaders();
+        headers.etag = etag;
+        headers.lastModified = lastModified;
+
+        long maxAgeSeconds = -1;
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-store")) {
+                    headers.noStore = true;
+                } else if (directive.equals("no-cache")) {
+                    headers.noCache = true;
+                } else if (directive.startsWith("max-age=")) {
+                    maxAgeSeconds = parseSeconds(directive.substring(8));
+                }
+            }
+        }
+        long lifetime = NO_MAX_AGE;
+        if (maxAgeSeconds >= 0) {
+            lifetime = maxAgeSeconds * 1000;
+        } else if (expires != null) {
+            // Expires无法解析（例如"0"）时视为已经过期
+            Date expiresDate = parseDate(expires);
+            Date serverDate = parseDate(date);
+            long now = serverDate != null ? serverDate.getTime() : System
+                    .currentTimeMillis();
+            lifetime = expiresDate != null ? Math.max(0,
+                    expiresDate.getTime() - now) : 0;
+        }
+        if (lifetime != NO_MAX_AGE && age != null) {
+            // 响应在中间缓存里已经存放的时间
+            long ageSeconds = parseSeconds(age);
+            if (ageSeconds > 0) {
+                lifetime = Math.max(0, lifetime - ageSeconds * 1000);
+            }
+        }
+        headers.maxAge = lifetime;
+        return headers;
+    }
+
+    private static long parseSeconds(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Date parseDate(String value) {
+        if (value == null) {
+            return null;
+        }
+        // SimpleDateFormat不是线程安全的，每次新建
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value.trim());
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 服务器要求不缓存该响应(no-store)
+     */
+    public boolean isNoStore() {
+        return noStore;
+    }
+
+    /**
+     * 服务器要求每次使用前都重新验证(no-cache)
+     */
+    public boolean isNoCache() {
+        return noCache;
+    }
+
+    /**
+     * 服务器通过max-age或Expires指定的有效期（已扣除Age），单位：毫秒
+     *
+     * @return 没有指定时返回{@link #NO_MAX_AGE}
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * 服务器指定的可以直接使用缓存的时间，no-cache时为0，单位：毫秒
+     *
+     * @return 没有指定时返回{@link #NO_MAX_AGE}
+     */
+    public long getFreshTime() {
+        return noCache ? 0 : maxAge;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+}
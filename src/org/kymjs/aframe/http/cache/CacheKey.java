@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2014, KJFrameForAndroid 张涛 (kymjs123@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kymjs.aframe.http.cache;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 一个请求在缓存中的标识（请求指纹）<br>
+ *
+ * <b>说明</b> 由请求方法、规范化的url、请求体（按名称排序的参数）与指定的请求头组成完整的key，
+ * 同一地址不同参数的post请求不会再共用一条缓存<br>
+ * <b>说明</b> 每个请求只创建一次，创建时用64位FNV-1a计算完整key的散列，作为内存与数据库中的索引；
+ * 散列可能冲突，缓存中同时保存完整的key，读取时比对，不一致视为没有缓存<br>
+ * <b>创建时间</b> 2014-11-1
+ *
+ * @author kymjs(kymjs123@gmail.com)
+ * @version 1.0
+ */
+public final class CacheKey {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String url;
+    private final String key;
+    private final String hash;
+
+    private CacheKey(String url, String key) {
+        this.url = url;
+        this.key = key;
+        this.hash = fnv1a64(key);
+    }
+
+    /**
+     * 没有请求体与请求头的get请求
+     */
+    public static CacheKey create(String url) {
+        return create("GET", url, null, null, null);
+    }
+
+    /**
+     * 创建请求指纹
+     *
+     * @param method
+     *            请求方法
+     * @param url
+     *            请求地址
+     * @param body
+     *            请求体的规范形式（例如按名称排序的参数），没有请求体时为null或空串
+     * @param headers
+     *            请求的全部请求头，可以为null
+     * @param keyHeaders
+     *            参与指纹的请求头名称（不区分大小写），可以为null
+     */
+    public static CacheKey create(String method, String url, String body,
+            Map<String, String> headers, Collection<String> keyHeaders) {
+        StringBuilder key = new StringBuilder(method).append(' ').append(
+                normalizeUrl(url));
+        if (body != null && body.length() > 0) {
+            key.append('\n').append(body);
+        }
+        if (headers != null && keyHeaders != null && !keyHeaders.isEmpty()) {
+            TreeMap<String, String> selected = new TreeMap<String, String>();
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                for (String name : keyHeaders) {
+                    if (name.equalsIgnoreCase(entry.getKey())) {
+                        selected.put(name.toLowerCase(Locale.US),
+                                entry.getValue());
+                        break;
+                    }
+                }
+            }
+            for (Map.Entry<String, String> entry : selected.entrySet()) {
+                key.append('\n').append(entry.getKey()).append(':')
+                        .append(entry.getValue());
+            }
+        }
+        return new CacheKey(url, key.toString());
+    }
+
+    /**
+     * 把参数按名称排序后拼接为name=value&...（名称与值经过url编码），作为请求体的规范形式
+     */
+    public static String sortedParams(Map<String, String> params) {
+        if (params == null || params.isEmpty()) {
+            return "";
+        }
+        StringBuilder str = new StringBuilder();
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(
+                params).entrySet()) {
+            if (str.length() > 0) {
+                str.append('&');
+            }
+            str.append(encode(entry.getKey())).append('=')
+                    .append(encode(entry.getValue()));
+        }
+        return str.toString();
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) { // UTF-8总是支持的
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 规范化url：协议与主机名转为小写，去掉默认端口与#之后的片段
+     */
+    public static String normalizeUrl(String url) {
+        if (url == null) {
+            return "";
+        }
+        String result = url.trim();
+        int hash = result.indexOf('#');
+        if (hash >= 0) {
+            result = result.substring(0, hash);
+        }
+        int schemeEnd = result.indexOf("://");
+        if (schemeEnd < 0) {
+            return result;
+        }
+        int hostEnd = result.length();
+        for (int i = schemeEnd + 3; i < result.length(); i++) {
+            char c = result.charAt(i);
+            if (c == '/' || c == '?') {
+                hostEnd = i;
+                break;
+            }
+        }
+        String scheme = result.substring(0, schemeEnd).toLowerCase(
+                Locale.US);
+        String host = result.substring(schemeEnd + 3, hostEnd)
+                .toLowerCase(Locale.US);
+        if (("http".equals(scheme) && host.endsWith(":80"))
+                || ("https".equals(scheme) && host.endsWith(":443"))) {
+            host = host.substring(0, host.lastIndexOf(':'));
+        }
+        String path = result.substring(hostEnd);
+        if (path.length() == 0 || path.charAt(0) == '?') {
+            path = "/" + path;
+        }
+        return scheme + "://" + host + path;
+    }
+
+    private static String fnv1a64(String key) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0, length = key.length(); i < length; i++) {
+            char c = key.charAt(i);
+            hash = (hash ^ (c & 0xFF)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        char[] hex = new char[16];
+        for (int i = 15; i >= 0; i--) {
+            hex[i] = HEX[(int) (hash & 0xF)];
+            hash >>>= 4;
+        }
+        return new String(hex);
+    }
+
+    /**
+     * 请求地址（未规范化），用于匹配配置器中的url规则
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * 完整的key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * 完整key的散列（16位十六进制），内存与数据库中以它为索引
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * 缓存是否确实属于本请求（排除散列冲突）
+     */
+    boolean matches(CacheBean data) {
+        return data != null && key.equals(data.cacheKey);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CacheKey && key.equals(((CacheKey) o).key);
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
@@ -15,45 +15,102 @@
  */
 package org.kymjs.aframe.http.cache;
 
-import java.util.List;
+import java.io.File;
 
 import org.kymjs.aframe.database.KJDB;
+import org.kymjs.aframe.ui.KJActivityManager;
 import org.kymjs.aframe.utils.LogUtils;
 
+import android.content.Context;
+
 /**
  * Http请求中对字符串信息的缓存类，通过Lru算法，对数据做两级缓存（内存缓存、数据库缓存）<br>
  * 
  * <b>说明</b> 系统默认的缓存时间为5分钟，你可以通过设置修改它<br>
+ * <b>说明</b> 写入时同步更新内存缓存，数据库由后台线程批量写入，调用线程不会访问磁盘；
+ * 需要确保数据落盘时（例如退出应用前）调用{@link #flush()}<br>
+ * <b>说明</b> 数据库缓存的条数与大小受配置器限制，由后台线程定时清理<br>
+ * <b>说明</b> 较大的缓存内容保存在应用缓存目录下的文件中，数据库只保存文件名；
+ * 没有传入Context时使用栈顶Activity，两者都没有时不使用文件，内容都保存在数据库中<br>
  * <b>创建时间</b> 2014-9-3
  * 
  * @author kymjs(kymjs123@gmail.com)
  * @version 1.0
  */
 public class HttpCache implements I_HttpCache {
+    /** 数据库延迟写入队列的容量 */
+    private static final int WRITE_QUEUE_CAPACITY = 128;
+    /** 距上次记录超过该时间的读取才会更新数据库中的最后读取时间 */
+    private static final long ACCESS_UPDATE_INTERVAL = 60 * 1000;
+    /** 应用缓存目录下保存缓存内容文件的目录 */
+    private static final String FILE_DIR = "KJLibrary_http";
+
     private KJCacheConfig config;
     private HttpMemoryCache cache;
     private static HttpCache instance;
-    private KJDB db;
+    private HttpCacheDao dao;
+    private HttpCacheWriter writer;
+    private HttpCacheSweeper sweeper;
+    private HttpCacheFiles files;
 
     /******************** 使用静态内部类手段创建单例 **********************/
-    private HttpCache(HttpMemoryCache cache) {
-        this.cache = cache;
-        config = new KJCacheConfig();
-        db = KJDB.create(config.isDebug());
+    private HttpCache(Context context, KJCacheConfig config) {
+        this.config = config;
+        // 内存缓存的结构（并发实现、准入策略）在创建时由配置器决定
+        cache = HttpMemoryCache.create(config);
+        if (context == null) {
+            context = KJActivityManager.create().topActivity();
+        }
+        KJDB db;
+        File dir = null;
+        if (context == null) {
+            db = KJDB.create(config.isDebug());
+        } else {
+            context = context.getApplicationContext();
+            db = KJDB.create(context, config.isDebug());
+            File cacheDir = context.getCacheDir();
+            if (cacheDir != null) {
+                dir = new File(cacheDir, FILE_DIR);
+            }
+        }
+        files = new HttpCacheFiles(dir, config);
+        dao = new HttpCacheDao(db, files);
+        sweeper = new HttpCacheSweeper(dao, files, config);
+        writer = new HttpCacheWriter(dao, sweeper, WRITE_QUEUE_CAPACITY);
+        writer.setDebug(config.isDebug());
     }
 
     /**
-     * 使用默认配置
+     * 创建缓存器，单例：只有第一次调用时的参数生效
+     * 
+     * @param context
+     *            用于打开数据库与取得缓存目录，为null时使用栈顶Activity
+     * @param config
+     *            缓存配置器，内存缓存按它创建
      */
-    public synchronized static HttpCache create(HttpMemoryCache cache) {
+    public synchronized static HttpCache create(Context context,
+            KJCacheConfig config) {
         if (instance == null) {
-            instance = new HttpCache(cache);
+            instance = new HttpCache(context, config);
         }
         return instance;
     }
 
+    /**
+     * 使用默认配置
+     * 
+     * @param context
+     *            用于打开数据库与取得缓存目录，为null时使用栈顶Activity
+     */
+    public static HttpCache create(Context context) {
+        return create(context, new KJCacheConfig());
+    }
+
+    /**
+     * 使用默认配置，通过栈顶Activity打开数据库与取得缓存目录
+     */
     public static HttpCache create() {
-        return create(HttpMemoryCache.create());
+        return create((Context) null);
     }
 
     /************************** public method ****************************/
@@ -68,26 +125,47 @@ public class HttpCache implements I_HttpCache {
      */
     @Override
     public void add(String url, String json) {
+        add(CacheKey.create(url), json, null);
+    }
+
+    /**
+     * 添加一个缓存，有效期优先使用服务器通过Cache-Control/Expires指定的时间，再由配置器的url规则修正；
+     * 同时保存服务器返回的ETag与Last-Modified，缓存过期后可以用它们发起条件请求
+     * 
+     * @param key
+     *            请求指纹
+     * @param json
+     *            value
+     * @param headers
+     *            响应中与缓存有关的响应头，为null时使用默认有效期；no-store时不缓存并删除旧缓存
+     */
+    @Override
+    public void add(CacheKey key, String json, CacheHeaders headers) {
+        if (headers != null && headers.isNoStore()) {
+            showDebug("no-store, remove cache for " + key.getUrl());
+            cache.remove(key);
+            writer.delete(key.getHash());
+            return;
+        }
         CacheBean data = new CacheBean();
-        long currentTime = System.currentTimeMillis();
-        data.createTime = currentTime;
-        data.effectiveTime = config.getEffectiveTime();
+        data.urlHash = key.getHash();
+        data.cacheKey = key.getKey();
+        data.createTime = System.currentTimeMillis();
+        data.effectiveTime = config.getEffectiveTime(key.getUrl(),
+                headers == null ? CacheHeaders.NO_MAX_AGE : headers
+                        .getFreshTime());
         data.overdueTime = data.createTime + data.effectiveTime;
-        data.url = url;
-        data.json = json;
-        CacheBean dataInDb = getCacheBean(url);
-        if (dataInDb != null) {
-            if ((dataInDb.overdueTime - currentTime) > 0) {
-                /* 还没过期，继续用 */
-            } else {
-                showDebug("update to database cache for " + data.url);
-                db.update(data);
-            }
-        } else {
-            showDebug("add to database cache for " + data.url);
-            db.save(data);
+        data.url = key.getUrl();
+        data.setBody(json, config.isCompressBody());
+        data.lastAccessTime = data.createTime;
+        if (headers != null) {
+            data.etag = headers.getEtag();
+            data.lastModified = headers.getLastModified();
         }
+        // 网络返回的内容总是比缓存新，即使旧缓存还没过期也直接替换
+        showDebug("add to database cache for " + data.url);
         cache.add(data);
+        writer.put(data);
     }
 
     /**
@@ -99,17 +177,34 @@ public class HttpCache implements I_HttpCache {
      */
     @Override
     public String get(String url) {
-        String res = cache.get(url);
-        if (res == null) { // 内存缓存中没有
-            CacheBean data = getCacheBean(url);
+        return get(CacheKey.create(url));
+    }
+
+    /**
+     * 读取一个未过期的缓存，首先会从内存缓存中查找，再去数据库中查找
+     * 
+     * @param key
+     *            请求指纹
+     * @return 若缓存中没有对应的cache，返回null，若对应的cache过期，返回null
+     */
+    @Override
+    public String get(CacheKey key) {
+        String res = null;
+        CacheBean data = cache.getEntry(key);
+        if (data != null
+                && (data.overdueTime - System.currentTimeMillis()) > 0) {
+            res = data.getJson();
+            accessed(data);
+            showDebug("get cache from memory");
+        } else { // 内存缓存中没有
+            data = queryDb(key);
             if (data != null
                     && (data.overdueTime - System.currentTimeMillis()) > 0) {
-                res = data.json;
+                res = data.getJson();
                 cache.add(data);
+                accessed(data);
                 showDebug("get cache from database");
             }
-        } else {
-            showDebug("get cache from memory");
         }
         return res;
     }
@@ -122,35 +217,153 @@ public class HttpCache implements I_HttpCache {
      */
     @Override
     public String getDataFromCache(String url) {
-        String res = cache.getDataFromCache(url);
+        return getDataFromCache(CacheKey.create(url));
+    }
+
+    /**
+     * 忽略缓存的有效期读取缓存
+     * 
+     * @param key
+     *            请求指纹
+     * @return 若没有对应的cache，返回null
+     */
+    @Override
+    public String getDataFromCache(CacheKey key) {
+        CacheBean data = cache.getEntry(key);
+        String res = data == null ? null : data.getJson();
         if (res == null) {
-            CacheBean data = getCacheBean(url);
+            data = queryDb(key);
             if (data != null) {
-                res = data.json;
+                res = data.getJson();
+                accessed(data);
                 showDebug("get a cache from database");
             }
         } else {
+            accessed(data);
             showDebug("get a cache from memory");
         }
         return res;
     }
 
     /**
-     * 内部方法，从数据库读取一个CacheBean
+     * 忽略缓存的有效期读取缓存条目，首先会从内存缓存中查找，再去数据库中查找
      * 
-     * @param url
-     * @return
+     * @param key
+     *            请求指纹
+     * @return 若没有对应的cache，返回null
      */
-    private CacheBean getCacheBean(String url) {
-        CacheBean data = null;
-        List<CacheBean> datas = db.findAllByWhere(CacheBean.class,
-                "url='" + url + "';");
-        if (datas != null && !datas.isEmpty()) {
-            data = datas.get(0);
+    @Override
+    public CacheBean getEntry(CacheKey key) {
+        CacheBean data = cache.getEntry(key);
+        if (data == null) {
+            data = queryDb(key);
         }
         return data;
     }
 
+    /**
+     * 服务器返回304(Not Modified)时调用：从现在起重新计算缓存的有效期，不需要重新下载内容
+     * 
+     * @param key
+     *            请求指纹
+     * @param headers
+     *            304响应中与缓存有关的响应头，可以为null
+     * @return 缓存的内容；若没有对应的cache，返回null
+     */
+    @Override
+    public String refresh(CacheKey key, CacheHeaders headers) {
+        CacheBean old = getEntry(key);
+        if (old == null) {
+            return null;
+        }
+        CacheBean data = HttpMemoryCache.refreshed(old, headers, config);
+        showDebug("refresh cache for " + key.getUrl());
+        cache.add(data);
+        writer.put(data);
+        return data.getJson();
+    }
+
+    /**
+     * 读取缓存内容的解码结果。解码结果只保存在内存缓存中，随缓存一起被淘汰或替换
+     * 
+     * @param key
+     *            请求指纹
+     * @param converter
+     *            解码器，只复用同一个解码器的解码结果
+     * @return 内存缓存中没有对应的cache，或还没有用该解码器解码过时返回null
+     */
+    public Object getDecoded(CacheKey key, Object converter) {
+        return getDecoded(key, converter, false);
+    }
+
+    /**
+     * 读取缓存内容的解码结果，只检查内存缓存中的条目与有效期，不读取（解压、读文件）缓存内容
+     * 
+     * @param key
+     *            请求指纹
+     * @param converter
+     *            解码器，只复用同一个解码器的解码结果
+     * @param fresh
+     *            为true时只使用未过期的缓存
+     * @return 没有对应的解码结果，或要求未过期而缓存已过期时返回null
+     */
+    public Object getDecoded(CacheKey key, Object converter, boolean fresh) {
+        CacheBean data = cache.getEntry(key);
+        if (data == null || fresh
+                && (data.overdueTime - System.currentTimeMillis()) <= 0) {
+            return null;
+        }
+        Object value = data.getDecoded(converter);
+        if (value != null) {
+            accessed(data);
+            showDebug("get decoded cache from memory");
+        }
+        return value;
+    }
+
+    /**
+     * 保存缓存内容的解码结果，内存缓存中没有对应的cache时忽略
+     * 
+     * @param key
+     *            请求指纹
+     * @param converter
+     *            解码器
+     * @param value
+     *            解码结果
+     */
+    public void putDecoded(CacheKey key, Object converter, Object value) {
+        cache.putDecoded(key, converter, value);
+    }
+
+    /**
+     * 阻塞直到所有延迟写入的缓存都已写入数据库，应在退出应用前调用；最多等待几秒，超时后直接返回
+     */
+    public void flush() {
+        writer.flush();
+    }
+
+    /**
+     * 记录一次读取。同一条缓存在{@link #ACCESS_UPDATE_INTERVAL}内只记录一次，避免每次读取都写数据库
+     */
+    private void accessed(CacheBean data) {
+        long now = System.currentTimeMillis();
+        if (now - data.lastAccessTime > ACCESS_UPDATE_INTERVAL) {
+            data.lastAccessTime = now;
+            writer.access(data.urlHash, now);
+        }
+    }
+
+    /**
+     * 从数据库读取一条缓存，还在写入队列中的数据优先；只是散列相同的其它请求的缓存视为没有
+     */
+    private CacheBean queryDb(CacheKey key) {
+        CacheBean data = writer.getPending(key.getHash());
+        if (data == HttpCacheWriter.NOT_PENDING) {
+            data = dao.query(key.getHash());
+        }
+        return key.matches(data) ? data : null;
+    }
+
     private void showDebug(String msg) {
         if (config.isDebug()) {
             LogUtils.d(msg);
@@ -167,10 +380,16 @@ public class HttpCache implements I_HttpCache {
     }
 
     /**
-     * 设置当前缓存配置器
+     * 设置当前缓存配置器<br>
+     * 内存缓存的结构（{@link KJCacheConfig#setConcurrentMemoryCache(boolean)}、
+     * {@link KJCacheConfig#setUseTinyLfu(boolean)}）只在创建时读取，需要通过
+     * {@link #create(Context, KJCacheConfig)}指定
      */
     public void setConfig(KJCacheConfig config) {
         this.config = config;
+        cache.setConfig(config);
+        sweeper.setConfig(config);
+        files.setConfig(config);
     }
 
     /**
@@ -199,5 +418,6 @@ public class HttpCache implements I_HttpCache {
      */
     public void setDebug(boolean isDebug) {
         this.config.setDebug(isDebug);
+        writer.setDebug(isDebug);
     }
 }
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2014, KJFrameForAndroid 张涛 (kymjs123@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kymjs.aframe.http.cache;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.kymjs.aframe.database.KJDB;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * HttpCache的数据库访问层。仅内部使用<br>
+ *
+ * <b>说明</b> kj_http_cache表以请求指纹的散列(urlHash列)建立唯一索引，
+ * 所有读写都按urlHash定位一行，查询耗时与表中的数据量基本无关<br>
+ * <b>说明</b> 写入与删除使用预编译的SQLiteStatement，读取缓存使用固定的带参数sql，
+ * 只查询需要的列；预编译语句不是线程安全的，所有方法互斥执行<br>
+ * <b>说明</b> 压缩保存的内容以BLOB写入json列，由compressed列区分；
+ * 保存在文件中的内容json列为null，bodyFile列为文件名<br>
+ * <b>说明</b> 清理相关的方法（过期删除、lru淘汰、增量VACUUM）只应在后台线程调用，
+ * 见{@link HttpCacheSweeper}<br>
+ * <b>创建时间</b> 2014-10-28
+ *
+ * @author kymjs(kymjs123@gmail.com)
+ * @version 1.0
+ */
+final class HttpCacheDao {
+    private static final String TABLE = "kj_http_cache";
+
+    private static final String SQL_QUERY_ENTRY = "SELECT url, json, etag, lastModified, createTime, effectiveTime, overdueTime, lastAccessTime, size, compressed, bodyFile, cacheKey FROM "
+            + TABLE + " WHERE urlHash=?";
+    private static final String SQL_USAGE = "SELECT COUNT(*), TOTAL(size) FROM "
+            + TABLE;
+    private static final String SQL_BODY_FILES = "SELECT DISTINCT bodyFile FROM "
+            + TABLE + " WHERE bodyFile IS NOT NULL";
+    /** auto_vacuum的取值：INCREMENTAL */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final KJDB db;
+    private final HttpCacheFiles files;
+    private final SQLiteStatement upsert;
+    private final SQLiteStatement delete;
+    private final SQLiteStatement touch;
+    private final SQLiteStatement deleteExpired;
+    private final SQLiteStatement evictOldest;
+
+    HttpCacheDao(KJDB db, HttpCacheFiles files) {
+        this.db = db;
+        this.files = files;
+        // 建表（并补上新增的列），再建立urlHash的唯一索引，以及清理时使用的两个索引
+        db.checkTableExist(CacheBean.class);
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + TABLE
+                + "_url_hash ON " + TABLE + " (urlHash)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE
+                + "_overdue_time ON " + TABLE + " (overdueTime)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE
+                + "_last_access_time ON " + TABLE + " (lastAccessTime)");
+        // 旧版本按url的MD5保存的数据没有cacheKey，无法再被查到，直接清除（内容文件由清理器删除）
+        db.execSQL("DELETE FROM " + TABLE + " WHERE cacheKey IS NULL");
+
+        upsert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE
+                + " (urlHash, url, json, etag, lastModified, createTime,"
+                + " effectiveTime, overdueTime, lastAccessTime, size, compressed,"
+                + " bodyFile, cacheKey)"
+                + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        delete = db.compileStatement("DELETE FROM " + TABLE
+                + " WHERE urlHash=?");
+        touch = db.compileStatement("UPDATE " + TABLE
+                + " SET lastAccessTime=? WHERE urlHash=?");
+        deleteExpired = db.compileStatement("DELETE FROM " + TABLE
+                + " WHERE urlHash IN (SELECT urlHash FROM " + TABLE
+                + " WHERE overdueTime<? LIMIT ?)");
+        evictOldest = db.compileStatement("DELETE FROM " + TABLE
+                + " WHERE urlHash IN (SELECT urlHash FROM " + TABLE
+                + " ORDER BY lastAccessTime LIMIT ?)");
+    }
+
+    /**
+     * 读取一条缓存，不论是否过期
+     *
+     * @return 没有对应的缓存时返回null
+     */
+    synchronized CacheBean query(String urlHash) {
+        Cursor cursor = db.rawQuery(SQL_QUERY_ENTRY,
+                new String[] { urlHash });
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            CacheBean data = new CacheBean();
+            data.urlHash = urlHash;
+            data.url = cursor.getString(0);
+            data.compressed = cursor.getInt(9) != 0;
+            data.bodyFile = cursor.getString(10);
+            data.cacheKey = cursor.getString(11);
+            if (data.bodyFile != null) {
+                data.spillFile = files.file(data.bodyFile);
+            } else if (data.compressed) {
+                data.deflated = cursor.getBlob(1);
+            } else {
+                data.json = cursor.getString(1);
+            }
+            data.etag = cursor.getString(2);
+            data.lastModified = cursor.getString(3);
+            data.createTime = cursor.getLong(4);
+            data.effectiveTime = cursor.getLong(5);
+            data.overdueTime = cursor.getLong(6);
+            data.lastAccessTime = cursor.getLong(7);
+            data.size = cursor.getLong(8);
+            return data;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 写入一条缓存，已有相同urlHash的缓存时替换它；内容较大时先写入文件
+     */
+    synchronized void upsert(CacheBean data) {
+        String bodyFile = files.spill(data);
+        upsert.bindString(1, data.urlHash);
+        upsert.bindString(2, data.url);
+        if (bodyFile != null) {
+            upsert.bindNull(3);
+        } else if (data.compressed) {
+            upsert.bindBlob(3, data.deflated);
+        } else {
+            bindStringOrNull(upsert, 3, data.json);
+        }
+        bindStringOrNull(upsert, 4, data.etag);
+        bindStringOrNull(upsert, 5, data.lastModified);
+        upsert.bindLong(6, data.createTime);
+        upsert.bindLong(7, data.effectiveTime);
+        upsert.bindLong(8, data.overdueTime);
+        upsert.bindLong(9, data.lastAccessTime);
+        upsert.bindLong(10, data.size);
+        upsert.bindLong(11, data.compressed ? 1 : 0);
+        bindStringOrNull(upsert, 12, bodyFile);
+        upsert.bindString(13, data.cacheKey);
+        upsert.executeInsert();
+    }
+
+    /**
+     * 删除一条缓存
+     */
+    synchronized void delete(String urlHash) {
+        delete.bindString(1, urlHash);
+        delete.executeUpdateDelete();
+    }
+
+    /**
+     * 在一个事务中批量写入，value为null表示删除该缓存
+     *
+     * @param entries
+     *            key为urlHash
+     * @param accesses
+     *            key为urlHash，value为最后一次读取的时间；在entries之后写入
+     */
+    synchronized void writeBatch(Map<String, CacheBean> entries,
+            Map<String, Long> accesses) {
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, CacheBean> entry : entries.entrySet()) {
+                if (entry.getValue() == null) {
+                    delete(entry.getKey());
+                } else {
+                    upsert(entry.getValue());
+                }
+            }
+            for (Map.Entry<String, Long> entry : accesses.entrySet()) {
+                touch.bindLong(1, entry.getValue());
+                touch.bindString(2, entry.getKey());
+                touch.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 删除最多limit条过期时间早于before的缓存
+     *
+     * @return 删除的条数
+     */
+    synchronized int deleteExpired(long before, int limit) {
+        deleteExpired.bindLong(1, before);
+        deleteExpired.bindLong(2, limit);
+        return deleteExpired.executeUpdateDelete();
+    }
+
+    /**
+     * 删除最久没有被读取的count条缓存
+     *
+     * @return 删除的条数
+     */
+    synchronized int evictOldest(int count) {
+        evictOldest.bindLong(1, count);
+        return evictOldest.executeUpdateDelete();
+    }
+
+    /**
+     * 统计缓存的条数与总大小
+     *
+     * @return {条数, 总大小}
+     */
+    synchronized long[] usage() {
+        Cursor cursor = db.rawQuery(SQL_USAGE, null);
+        try {
+            cursor.moveToFirst();
+            return new long[] { cursor.getLong(0), cursor.getLong(1) };
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 所有仍被引用的内容文件名
+     */
+    synchronized Set<String> bodyFiles() {
+        Set<String> names = new HashSet<String>();
+        Cursor cursor = db.rawQuery(SQL_BODY_FILES, null);
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    /**
+     * 数据库中空闲页的总大小超过threshold时，把空闲页归还给文件系统
+     *
+     * <b>说明</b> 缓存表位于应用共用的数据库中，只在数据库的auto_vacuum已经是INCREMENTAL时执行
+     * incremental_vacuum；不修改数据库的auto_vacuum模式，也不执行完整的VACUUM（会重写应用的所有表）<br>
+     *
+     * @return 释放的字节数
+     */
+    synchronized long vacuumIfNeeded(long threshold) {
+        if (pragma("auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            return 0;
+        }
+        long pageSize = pragma("page_size");
+        long freeBytes = pragma("freelist_count") * pageSize;
+        if (freeBytes < threshold) {
+            return 0;
+        }
+        // incremental_vacuum每释放一页返回一行，需要遍历结果才会执行完
+        Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum", null);
+        try {
+            while (cursor.moveToNext()) {
+            }
+        } finally {
+            cursor.close();
+        }
+        return freeBytes - pragma("freelist_count") * pageSize;
+    }
+
+    private long pragma(String name) {
+        Cursor cursor = db.rawQuery("PRAGMA " + name, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement,
+            int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2014, KJFrameForAndroid 张涛 (kymjs123@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kymjs.aframe.http.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+import org.kymjs.aframe.core.KJException;
+
+/**
+ * HttpCache中大缓存内容的文件存储。仅内部使用<br>
+ *
+ * <b>说明</b> 保存时的字节数不小于阈值的缓存内容写入缓存目录下的文件，数据库中只保存文件名，
+ * 避免大行超出CursorWindow，也让读取其它列不再需要搬运整段内容<br>
+ * <b>说明</b> 文件以内容（压缩后的数据）的SHA-1命名，相同的内容只保存一份；
+ * 文件先写入临时文件再改名，不会读到写了一半的文件<br>
+ * <b>说明</b> 文件只在写入线程中创建，清理时删除数据库中已不再引用的文件，与数据库的淘汰保持一致<br>
+ * <b>说明</b> 没有可用的缓存目录时不使用文件，内容都保存在数据库中<br>
+ * <b>创建时间</b> 2014-10-31
+ *
+ * @author kymjs(kymjs123@gmail.com)
+ * @version 1.0
+ */
+final class HttpCacheFiles {
+    /** 不小于该大小的文件读取时使用内存映射 */
+    private static final long MAP_MIN_SIZE = 512 * 1024;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final File dir;
+    private volatile KJCacheConfig config;
+
+    /**
+     * @param dir
+     *            保存文件的目录，为null时不使用文件
+     */
+    HttpCacheFiles(File dir, KJCacheConfig config) {
+        this.dir = dir;
+        this.config = config;
+    }
+
+    void setConfig(KJCacheConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * @return 没有缓存目录时返回null
+     */
+    File file(String name) {
+        return dir == null ? null : new File(dir, name);
+    }
+
+    /**
+     * 内容足够大时写入文件（相同内容的文件已存在时直接使用）
+     *
+     * @return 文件名；内容不需要或无法写入文件时返回null，由调用者保存在数据库中
+     */
+    String spill(CacheBean data) {
+        if (!data.hasBodyInMemory()) {
+            return data.bodyFile;
+        }
+        if (dir == null || data.size < config.getFileThreshold()) {
+            return null;
+        }
+        byte[] bytes = data.storedBytes();
+        String name = sha1(bytes);
+        File file = file(name);
+        if (file.exists()) {
+            return name;
+        }
+        dir.mkdirs(); // 缓存目录可能被系统清理
+        File temp = file(name + TEMP_SUFFIX);
+        boolean written = false;
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            FileChannel channel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            out.close();
+            written = true;
+        } catch (IOException e) {
+            closeQuietly(out);
+        }
+        if (!written || !temp.renameTo(file)) {
+            temp.delete();
+            return null;
+        }
+        return name;
+    }
+
+    /**
+     * 删除缓存目录中不在names中的文件（包括残留的临时文件）
+     *
+     * @return 删除的文件数
+     */
+    int retainOnly(Set<String> names) {
+        if (dir == null) {
+            return 0;
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int count = 0;
+        for (File file : files) {
+            if (!names.contains(file.getName()) && file.delete()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 读取文件的全部内容
+     *
+     * @return 文件不存在或读取失败时返回null
+     */
+    static byte[] readBytes(File file) {
+        ByteBuffer buffer = read(file);
+        if (buffer == null) {
+            return null;
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * 按UTF-8读取文件内容，大文件直接从内存映射解码，不经过中间的byte[]
+     *
+     * @return 文件不存在或读取失败时返回null
+     */
+    static String readString(File file) {
+        ByteBuffer buffer = read(file);
+        if (buffer == null) {
+            return null;
+        }
+        try {
+            return CHARSET.newDecoder().decode(buffer).toString();
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    private static ByteBuffer read(File file) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size >= MAP_MIN_SIZE) {
+                // 映射在通道关闭后仍然有效
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+            }
+            buffer.flip();
+            return buffer;
+        } catch (IOException e) { // 文件已被清理
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * 写入线程与读取缓存的线程中都不能因关闭失败抛出异常
+     */
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static String sha1(byte[] bytes) {
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-1").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new KJException("Huh, SHA-1 should be supported?", e);
+        }
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            if ((b & 0xFF) < 0x10)
+                hex.append("0");
+            hex.append(Integer.toHexString(b & 0xFF));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2014, KJFrameForAndroid 张涛 (kymjs123@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kymjs.aframe.http.cache;
+
+import org.kymjs.aframe.utils.LogUtils;
+
+/**
+ * HttpCache数据库缓存的清理器。仅内部使用<br>
+ *
+ * <b>说明</b> 先删除过期超过{@link KJCacheConfig#getMaxStaleTime()}的缓存，
+ * 仍然超出条数或大小上限时按最后读取时间淘汰最久没用的缓存；删除分批进行，
+ * 每批是一个短事务，不会长时间阻塞读取<br>
+ * <b>说明</b> 删除后数据库中的空闲空间超过阈值、且数据库本身已启用增量auto_vacuum时执行增量VACUUM，
+ * 把空间归还给文件系统；同时删除已不被任何缓存引用的内容文件<br>
+ * <b>说明</b> 由{@link HttpCacheWriter}的后台线程定时调用<br>
+ * <b>创建时间</b> 2014-10-30
+ *
+ * @author kymjs(kymjs123@gmail.com)
+ * @version 1.0
+ */
+final class HttpCacheSweeper {
+    /** 每批最多删除的条数 */
+    private static final int BATCH_SIZE = 100;
+
+    private final HttpCacheDao dao;
+    private final HttpCacheFiles files;
+    private volatile KJCacheConfig config;
+
+    HttpCacheSweeper(HttpCacheDao dao, HttpCacheFiles files,
+            KJCacheConfig config) {
+        this.dao = dao;
+        this.files = files;
+        this.config = config;
+    }
+
+    void setConfig(KJCacheConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * 执行一次清理
+     */
+    void sweep() {
+        KJCacheConfig config = this.config;
+        long before = System.currentTimeMillis() - config.getMaxStaleTime();
+        int expired = 0;
+        int deleted;
+        do {
+            deleted = dao.deleteExpired(before, BATCH_SIZE);
+            expired += deleted;
+        } while (deleted == BATCH_SIZE);
+
+        int evicted = 0;
+        long[] usage = dao.usage();
+        while (usage[0] > config.getMaxDbCount()
+                || usage[1] > config.getMaxDbSize()) {
+            deleted = dao.evictOldest(batchSize(usage, config));
+            if (deleted == 0) {
+                break;
+            }
+            evicted += deleted;
+            usage = dao.usage();
+        }
+
+        long freed = 0;
+        if (expired + evicted > 0) {
+            freed = dao.vacuumIfNeeded(config.getVacuumThreshold());
+        }
+        // 被替换或删除的缓存也会留下文件，每次都检查
+        int removedFiles = files.retainOnly(dao.bodyFiles());
+        if (config.isDebug()) {
+            LogUtils.d("HttpCache sweep: " + expired + " expired, " + evicted
+                    + " evicted, " + usage[0] + " left, " + freed
+                    + " bytes vacuumed, " + removedFiles + " files removed");
+        }
+    }
+
+    /**
+     * 按平均大小估算回到上限以内需要淘汰的条数，不超过{@link #BATCH_SIZE}
+     */
+    private static int batchSize(long[] usage, KJCacheConfig config) {
+        long need = usage[0] - config.getMaxDbCount();
+        long excessSize = usage[1] - config.getMaxDbSize();
+        if (excessSize > 0) {
+            need = Math.max(need, (excessSize * usage[0] + usage[1] - 1)
+                    / usage[1]);
+        }
+        return (int) Math.max(1, Math.min(BATCH_SIZE, need));
+    }
+}
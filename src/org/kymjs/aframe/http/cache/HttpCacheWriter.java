@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2014, KJFrameForAndroid 张涛 (kymjs123@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kymjs.aframe.http.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.kymjs.aframe.utils.LogUtils;
+
+/**
+ * HttpCache的延迟写入队列。仅内部使用<br>
+ *
+ * <b>说明</b> 调用者只把写操作放入队列就返回，后台线程把队列中的操作合并在一个事务中写入数据库，
+ * 避免在UI线程中访问数据库<br>
+ * <b>说明</b> 同一个url的多次写入只保留最后一次；队列容量有限，已满时新的写入不会进入数据库
+ * （内存缓存中仍然有效），删除操作则挤掉最早的一个写入，保证不会丢失<br>
+ * <b>说明</b> 读数据库之前应先调用{@link #getPending(String)}，队列中的数据比数据库中的新<br>
+ * <b>说明</b> 缓存被读取的时间也经由队列合并写入；数据库的清理({@link HttpCacheSweeper})
+ * 同样在该线程中定时执行，与批量写入互不重叠<br>
+ * <b>创建时间</b> 2014-10-29
+ *
+ * @author kymjs(kymjs123@gmail.com)
+ * @version 1.0
+ */
+final class HttpCacheWriter {
+    /** 收到第一个写操作后再等待一段时间，让更多的写操作合并到同一个事务 */
+    private static final long BATCH_DELAY = 200;
+    /** 创建后等待一段时间再做第一次清理，避开应用启动 */
+    private static final long FIRST_SWEEP_DELAY = 30 * 1000;
+    /** 两次清理的最长间隔 */
+    private static final long SWEEP_INTERVAL = 10 * 60 * 1000;
+    /** 距上次清理写入的缓存达到该数量时提前清理 */
+    private static final int SWEEP_WRITE_COUNT = 512;
+    /** {@link #flush()}最长的等待时间 */
+    private static final long FLUSH_TIMEOUT = 5 * 1000;
+    /** {@link #getPending(String)}的返回值，表示队列中没有该url的操作 */
+    static final CacheBean NOT_PENDING = new CacheBean();
+
+    private final HttpCacheDao dao;
+    private final HttpCacheSweeper sweeper;
+    private final int capacity;
+    /** key为urlHash，value为null表示删除 */
+    private final LinkedHashMap<String, CacheBean> pending = new LinkedHashMap<String, CacheBean>();
+    /** key为urlHash，value为最后一次读取的时间 */
+    private final LinkedHashMap<String, Long> accesses = new LinkedHashMap<String, Long>();
+    private final Object lock = new Object();
+    /** 后台线程正在写入的一批数据 */
+    private Map<String, CacheBean> writing;
+    private boolean flushRequested;
+    /** 后台线程是否已经意外退出（例如抛出了Error），此后不会再有数据写入 */
+    private boolean writerExited;
+    private boolean isDebug;
+    private int droppedCount;
+    private long nextSweepTime;
+    private int writesSinceSweep;
+
+    HttpCacheWriter(HttpCacheDao dao, HttpCacheSweeper sweeper, int capacity) {
+        this.dao = dao;
+        this.sweeper = sweeper;
+        this.capacity = capacity;
+        nextSweepTime = System.currentTimeMillis() + FIRST_SWEEP_DELAY;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                android.os.Process
+                        .setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    writeLoop();
+                } finally {
+                    synchronized (lock) {
+                        writerExited = true;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        }, "KJLibrary HttpCache writer");
+        thread.setDaemon(true);
+        thread.start();
+        // 进程正常退出前写完队列中的数据
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    /**
+     * 放入一个写入操作
+     */
+    void put(CacheBean data) {
+        enqueue(data.urlHash, data);
+    }
+
+    /**
+     * 放入一个删除操作
+     */
+    void delete(String urlHash) {
+        enqueue(urlHash, null);
+    }
+
+    /**
+     * 记录一次读取，只更新数据库中的最后读取时间；队列已满时忽略
+     */
+    void access(String urlHash, long time) {
+        synchronized (lock) {
+            CacheBean data = pending.get(urlHash);
+            if (data != null) {
+                data.lastAccessTime = time;
+            } else if (accesses.containsKey(urlHash)
+                    || accesses.size() < capacity) {
+                // 不唤醒后台线程，随下一批写入或清理一起写入
+                accesses.put(urlHash, time);
+            }
+        }
+    }
+
+    private void enqueue(String urlHash, CacheBean data) {
+        synchronized (lock) {
+            // 先移除再放入，使合并后的操作排在队尾
+            boolean coalesced = pending.containsKey(urlHash);
+            pending.remove(urlHash);
+            if (!coalesced && pending.size() >= capacity) {
+                if (data != null) {
+                    droppedCount++;
+                    debug("HttpCache write queue is full, skip persisting "
+                            + data.url);
+                    return;
+                }
+                Iterator<String> oldest = pending.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+                droppedCount++;
+            }
+            pending.put(urlHash, data);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * 取得队列（包括正在写入的一批）中该url最新的数据
+     *
+     * @return 队列中没有该url的操作时返回{@link #NOT_PENDING}；最新的操作是删除时返回null
+     */
+    CacheBean getPending(String urlHash) {
+        synchronized (lock) {
+            if (pending.containsKey(urlHash)) {
+                return pending.get(urlHash);
+            }
+            if (writing != null && writing.containsKey(urlHash)) {
+                return writing.get(urlHash);
+            }
+            return NOT_PENDING;
+        }
+    }
+
+    /**
+     * 阻塞直到队列中已有的数据全部写入数据库，最多等待{@link #FLUSH_TIMEOUT}；
+     * 后台线程已经退出时立即返回
+     */
+    void flush() {
+        synchronized (lock) {
+            flushRequested = true;
+            lock.notifyAll();
+            long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT;
+            try {
+                while ((!pending.isEmpty() || !accesses.isEmpty()
+                        || writing != null) && !writerExited) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        debug("HttpCache flush timed out");
+                        return;
+                    }
+                    lock.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 因队列已满而没有写入数据库的操作数
+     */
+    int droppedCount() {
+        synchronized (lock) {
+            return droppedCount;
+        }
+    }
+
+    void setDebug(boolean isDebug) {
+        this.isDebug = isDebug;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Map<String, CacheBean> batch;
+            Map<String, Long> accessBatch;
+            boolean sweep;
+            synchronized (lock) {
+                try {
+                    long untilSweep;
+                    while (pending.isEmpty()
+                            && !(flushRequested && !accesses.isEmpty())
+                            && (untilSweep = timeUntilSweep()) > 0) {
+                        flushRequested = false;
+                        lock.wait(untilSweep);
+                    }
+                    long deadline = System.currentTimeMillis() + BATCH_DELAY;
+                    long remaining;
+                    while (!pending.isEmpty() && !flushRequested
+                            && pending.size() < capacity
+                            && (remaining = deadline
+                                    - System.currentTimeMillis()) > 0) {
+                        lock.wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    // 后台线程不因中断退出，否则队列中的数据再也不会写入
+                    continue;
+                }
+                batch = new LinkedHashMap<String, CacheBean>(pending);
+                accessBatch = new LinkedHashMap<String, Long>(accesses);
+                pending.clear();
+                accesses.clear();
+                writing = batch;
+                writesSinceSweep += batch.size();
+                sweep = timeUntilSweep() <= 0;
+                if (sweep) {
+                    writesSinceSweep = 0;
+                    nextSweepTime = System.currentTimeMillis() + SWEEP_INTERVAL;
+                }
+            }
+            try {
+                if (!batch.isEmpty() || !accessBatch.isEmpty()) {
+                    dao.writeBatch(batch, accessBatch);
+                }
+                if (sweep) {
+                    sweeper.sweep();
+                }
+            } catch (RuntimeException e) {
+                debug("HttpCache database error: " + e.getMessage());
+            } finally {
+                synchronized (lock) {
+                    writing = null;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * 距下次清理的时间，写入量达到{@link #SWEEP_WRITE_COUNT}时立即清理
+     */
+    private long timeUntilSweep() {
+        if (writesSinceSweep >= SWEEP_WRITE_COUNT) {
+            return 0;
+        }
+        return nextSweepTime - System.currentTimeMillis();
+    }
+
+    private void debug(String msg) {
+        if (isDebug) {
+            LogUtils.d(msg);
+        }
+    }
+}
@@ -15,34 +15,53 @@
  */
 package org.kymjs.aframe.http.cache;
 
+import org.kymjs.aframe.core.ConcurrentMemoryLruCache;
+import org.kymjs.aframe.core.I_MemoryCache;
 import org.kymjs.aframe.core.MemoryLruCache;
-import org.kymjs.aframe.utils.CipherUtils;
+import org.kymjs.aframe.core.TinyLfuAdmission;
 import org.kymjs.aframe.utils.LogUtils;
 
 /**
  * 使用lru算法的JSON数据内存缓存池。仅内部使用，外界无法访问本类<br>
  * 
- * <b>说明</b> cache中存储是以url的MD5作为key，CacheBean作为V存储<br>
+ * <b>说明</b> cache中以请求指纹的散列({@link CacheKey#getHash()})作为key，CacheBean作为V存储，
+ * 读取时比对完整的key<br>
+ * <b>说明</b> 每条缓存占用的大小取CacheBean保存时计算好的字节数，开启压缩时为压缩后的大小；
+ * 内容保存在文件中的缓存只计算固定的小开销<br>
+ * <b>说明</b> 并发实现与W-TinyLFU准入策略由创建时的配置器决定，HttpCache以自己的配置器创建本类<br>
  * <b>创建时间</b> 2014-9-3
  * 
  * @version 1.0
  * @author kymjs(kymjs123@gmail.com)
  */
 final class HttpMemoryCache implements I_HttpCache {
-    private MemoryLruCache<String, CacheBean> cache;
+    private I_MemoryCache<String, CacheBean> cache;
     private KJCacheConfig config;
 
     /******************** 创建单例 **********************/
     private static HttpMemoryCache instance;
 
     private HttpMemoryCache(KJCacheConfig config, int maxSize) {
-        cache = new MemoryLruCache<String, CacheBean>(maxSize) {
-            @Override
-            protected int sizeOf(String k, CacheBean v) {
-                super.sizeOf(k, v);
-                return v.json.getBytes().length;
-            }
-        };
+        this.config = config;
+        if (config.isConcurrentMemoryCache()) {
+            cache = new ConcurrentMemoryLruCache<String, CacheBean>(maxSize) {
+                @Override
+                protected int sizeOf(String k, CacheBean v) {
+                    return v.memorySize();
+                }
+            };
+        } else {
+            // 按平均每条数据1kb估算缓存中的条目数
+            TinyLfuAdmission<String> admission = config.isUseTinyLfu() ? new TinyLfuAdmission<String>(
+                    maxSize / 1024) : null;
+            cache = new MemoryLruCache<String, CacheBean>(maxSize,
+                    admission) {
+                @Override
+                protected int sizeOf(String k, CacheBean v) {
+                    return v.memorySize();
+                }
+            };
+        }
     }
 
     /**
@@ -103,39 +122,56 @@ final class HttpMemoryCache implements I_HttpCache {
      */
     @Override
     public void add(String url, String json) {
-        CacheBean data = cache.get(CipherUtils.md5(url));
-        long currentTime = System.currentTimeMillis();
-        if (data != null) {
-            // 如果数据还没过期，则不再添加
-            if ((data.overdueTime - currentTime) > 0) {
-                return;
-            }
-        } else {
-            data = new CacheBean();
+        add(CacheKey.create(url), json, null);
+    }
+
+    /**
+     * 添加一个内存缓存，有效期由服务器返回的缓存响应头与配置器的规则决定，同时保存其中的校验信息
+     * 
+     * @param key
+     *            请求指纹
+     * @param headers
+     *            响应中与缓存有关的响应头，为null时按默认有效期缓存；no-store时不缓存
+     */
+    @Override
+    public void add(CacheKey key, String json, CacheHeaders headers) {
+        if (headers != null && headers.isNoStore()) {
+            remove(key);
+            return;
         }
-        data.createTime = currentTime;
-        data.effectiveTime = config.getEffectiveTime();
+        CacheBean data = new CacheBean();
+        data.urlHash = key.getHash();
+        data.cacheKey = key.getKey();
+        data.createTime = System.currentTimeMillis();
+        data.effectiveTime = config.getEffectiveTime(key.getUrl(),
+                headers == null ? CacheHeaders.NO_MAX_AGE : headers
+                        .getFreshTime());
         data.overdueTime = data.createTime + data.effectiveTime;
-        data.url = url;
-        data.json = json;
-        cache.put(CipherUtils.md5(url), data);
+        data.url = key.getUrl();
+        data.setBody(json, config.isCompressBody());
+        data.lastAccessTime = data.createTime;
+        if (headers != null) {
+            data.etag = headers.getEtag();
+            data.lastModified = headers.getLastModified();
+        }
+        add(data);
     }
 
     /**
-     * 添加一个内存缓存
+     * 添加一个内存缓存，替换同一请求指纹的旧缓存
      * 
      * @param cacheBean
-     *            缓存对象
+     *            缓存对象，必须已经设置了urlHash
      */
     public void add(CacheBean cacheBean) {
-        CacheBean data = cache.get(CipherUtils.md5(cacheBean.url));
-        long currentTime = System.currentTimeMillis();
-        if (data != null && (data.overdueTime - currentTime) > 0) {
-            // 如果数据还没过期，则不再添加
-            return;
-        } else {
-            cache.put(CipherUtils.md5(cacheBean.url), cacheBean);
-        }
+        cache.put(cacheBean.urlHash, cacheBean);
+    }
+
+    /**
+     * 移除请求对应的缓存
+     */
+    public void remove(CacheKey key) {
+        cache.remove(key.getHash());
     }
 
     /**
@@ -146,11 +182,23 @@ final class HttpMemoryCache implements I_HttpCache {
      */
     @Override
     public String get(String url) {
-        CacheBean data = cache.get(CipherUtils.md5(url));
+        return get(CacheKey.create(url));
+    }
+
+    /**
+     * 获取一个未过期的缓存
+     * 
+     * @param key
+     *            请求指纹
+     * @return 若没有对应的cache，返回null；若对应的cache已经过期，返回null
+     */
+    @Override
+    public String get(CacheKey key) {
+        CacheBean data = getEntry(key);
         if (data == null) { // 没有对应的缓存
             return null;
         } else if ((data.overdueTime - System.currentTimeMillis()) > 0) {
-            return data.json;
+            return data.getJson();
         } else { // 对应缓存已过期
             return null;
         }
@@ -164,14 +212,119 @@ final class HttpMemoryCache implements I_HttpCache {
      */
     @Override
     public String getDataFromCache(String url) {
-        CacheBean data = cache.get(CipherUtils.md5(url));
+        return getDataFromCache(CacheKey.create(url));
+    }
+
+    /**
+     * 忽略缓存的有效期读取缓存
+     * 
+     * @param key
+     *            请求指纹
+     * @return 若没有对应的cache，返回null
+     */
+    @Override
+    public String getDataFromCache(CacheKey key) {
+        CacheBean data = getEntry(key);
         if (data != null) {
-            return data.json;
+            return data.getJson();
         } else {
             return null;
         }
     }
 
+    /**
+     * 忽略缓存的有效期读取缓存条目
+     * 
+     * @param key
+     *            请求指纹
+     * @return 若没有对应的cache，或者只是散列相同的其它请求的cache，返回null
+     */
+    @Override
+    public CacheBean getEntry(CacheKey key) {
+        CacheBean data = cache.get(key.getHash());
+        return key.matches(data) ? data : null;
+    }
+
+    /**
+     * 读取缓存内容的解码结果。解码结果只保存在内存缓存中，随缓存一起被淘汰或替换
+     * 
+     * @param key
+     *            请求指纹
+     * @param converter
+     *            解码器，只复用同一个解码器的解码结果
+     * @return 没有对应的cache，或还没有用该解码器解码过时返回null
+     */
+    public Object getDecoded(CacheKey key, Object converter) {
+        CacheBean data = getEntry(key);
+        return data == null ? null : data.getDecoded(converter);
+    }
+
+    /**
+     * 保存缓存内容的解码结果，没有对应的cache时忽略。解码结果不计入缓存的大小
+     * 
+     * @param key
+     *            请求指纹
+     * @param converter
+     *            解码器
+     * @param value
+     *            解码结果
+     */
+    public void putDecoded(CacheKey key, Object converter, Object value) {
+        CacheBean data = getEntry(key);
+        if (data != null) {
+            data.setDecoded(converter, value);
+        }
+    }
+
+    /**
+     * 服务器返回304时调用，从现在起重新计算缓存的有效期
+     * 
+     * @param key
+     *            请求指纹
+     * @param headers
+     *            304响应中与缓存有关的响应头，可以为null
+     * @return 缓存的内容；若没有对应的cache，返回null
+     */
+    @Override
+    public String refresh(CacheKey key, CacheHeaders headers) {
+        CacheBean old = getEntry(key);
+        if (old == null) {
+            return null;
+        }
+        add(refreshed(old, headers, config));
+        return old.getJson();
+    }
+
+    /**
+     * 复制一个缓存条目并重新计算有效期，304响应中带有新的校验信息时一并更新
+     */
+    static CacheBean refreshed(CacheBean old, CacheHeaders headers,
+            KJCacheConfig config) {
+        CacheBean data = new CacheBean();
+        data.id = old.id;
+        data.urlHash = old.urlHash;
+        data.cacheKey = old.cacheKey;
+        data.url = old.url;
+        data.copyBody(old);
+        data.etag = old.etag;
+        data.lastModified = old.lastModified;
+        data.createTime = System.currentTimeMillis();
+        data.lastAccessTime = data.createTime;
+        data.effectiveTime = config.getEffectiveTime(old.url,
+                headers == null ? CacheHeaders.NO_MAX_AGE : headers
+                        .getFreshTime());
+        data.overdueTime = data.createTime + data.effectiveTime;
+        if (headers != null) {
+            if (headers.getEtag() != null) {
+                data.etag = headers.getEtag();
+            }
+            if (headers.getLastModified() != null) {
+                data.lastModified = headers.getLastModified();
+            }
+        }
+        return data;
+    }
+
     /**
      * 获取当前缓存配置器
      */
@@ -18,6 +18,8 @@ package org.kymjs.aframe.http.cache;
 /**
  * httpLibrary中数据缓存池的规范接口协议<br>
  * 
+ * <b>说明</b> 以url为参数的方法等同于使用{@link CacheKey#create(String)}，
+ * 即不带参数与请求头的get请求<br>
  * <b>创建时间</b> 2014-9-3
  * 
  * @author kymjs(kymjs123@gmail.com)
@@ -50,4 +52,52 @@ public interface I_HttpCache {
      * @return 若url没有对应的cache，返回null
      */
     String getDataFromCache(String url);
+
+    /**
+     * 添加一个缓存，有效期由服务器返回的缓存响应头决定，同时保存其中的校验信息，缓存过期后用于发起条件请求
+     *
+     * @param key
+     *            请求指纹
+     * @param headers
+     *            响应中与缓存有关的响应头，为null时按默认有效期缓存；no-store时不缓存
+     */
+    void add(CacheKey key, String json, CacheHeaders headers);
+
+    /**
+     * 获取一个未过期的缓存
+     *
+     * @param key
+     *            请求指纹
+     * @return 若没有对应的cache（包括散列相同但完整key不同），返回null；若对应的cache已经过期，返回null
+     */
+    String get(CacheKey key);
+
+    /**
+     * 忽略缓存的有效期读取缓存
+     *
+     * @param key
+     *            请求指纹
+     * @return 若没有对应的cache，返回null
+     */
+    String getDataFromCache(CacheKey key);
+
+    /**
+     * 忽略缓存的有效期读取缓存条目，用于取得发起条件请求所需的校验信息
+     *
+     * @param key
+     *            请求指纹
+     * @return 若没有对应的cache，返回null
+     */
+    CacheBean getEntry(CacheKey key);
+
+    /**
+     * 服务器返回304(Not Modified)时调用：重新计算缓存的过期时间，内容保持不变
+     *
+     * @param key
+     *            请求指纹
+     * @param headers
+     *            304响应中与缓存有关的响应头，可以为null
+     * @return 缓存的内容；若没有对应的cache，返回null
+     */
+    String refresh(CacheKey key, CacheHeaders headers);
 }
@@ -15,9 +15,16 @@
  */
 package org.kymjs.aframe.http.cache;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
 /**
  * Http请求中缓存池的配置器<br>
  * 
+ * <b>说明</b> 每条缓存的有效期优先使用服务器通过Cache-Control/Expires指定的时间，
+ * 服务器没有指定时使用effectiveTime；可以按url规则强制指定或限制有效期<br>
+ * <b>说明</b> 数据库缓存超出条数或大小上限时按最后读取时间淘汰，过期太久的缓存会被删除<br>
  * <b>创建时间</b> 2014-9-3
  * 
  * @author kymjs(kymjs123@gmail.com)
@@ -25,12 +32,40 @@ package org.kymjs.aframe.http.cache;
  */
 public class KJCacheConfig {
     private static final long EFFECTIVE_TIME = 50 * 60 * 1000; // 默认十分钟
+    private static final int MAX_DB_COUNT = 2000;
+    private static final long MAX_DB_SIZE = 8 * 1024 * 1024;
+    private static final long MAX_STALE_TIME = 7 * 24 * 60 * 60 * 1000L; // 默认七天
+    private static final long VACUUM_THRESHOLD = 1024 * 1024;
+    private static final long FILE_THRESHOLD = 256 * 1024;
     /** Cache有效期,实际单位：毫秒；对外单位：秒 */
     private long effectiveTime;
     private boolean isDebug;
+    /** 内存缓存是否使用分段锁的并发实现 */
+    private boolean concurrentMemoryCache;
+    /** 内存缓存是否使用W-TinyLFU准入策略 */
+    private boolean useTinyLfu;
+    /** 数据库缓存的最大条数 */
+    private int maxDbCount;
+    /** 数据库缓存内容的最大总大小，单位：字节 */
+    private long maxDbSize;
+    /** 是否以DEFLATE压缩保存缓存内容 */
+    private boolean compressBody;
+    /** 保存时不小于该字节数的缓存内容写入文件，数据库只保存文件名 */
+    private long fileThreshold;
+    /** 过期后仍保留在数据库中的时间（用于条件请求和离线时读取），单位：毫秒 */
+    private long maxStaleTime;
+    /** 数据库空闲空间超过该值时执行增量VACUUM，单位：字节 */
+    private long vacuumThreshold;
+    /** 按url匹配的有效期规则，按添加顺序匹配，第一条匹配的规则生效 */
+    private final List<Rule> rules = new CopyOnWriteArrayList<Rule>();
 
     public KJCacheConfig() {
         effectiveTime = EFFECTIVE_TIME;
+        maxDbCount = MAX_DB_COUNT;
+        maxDbSize = MAX_DB_SIZE;
+        maxStaleTime = MAX_STALE_TIME;
+        vacuumThreshold = VACUUM_THRESHOLD;
+        fileThreshold = FILE_THRESHOLD;
         isDebug = true;
     }
 
@@ -51,4 +86,177 @@ public class KJCacheConfig {
     public void setEffectiveTime(long effectiveTime) {
         this.effectiveTime = effectiveTime;
     }
+
+    /** 内存缓存是否使用分段锁的并发实现 */
+    public boolean isConcurrentMemoryCache() {
+        return concurrentMemoryCache;
+    }
+
+    /**
+     * 内存缓存是否使用分段锁的并发实现，多线程同时读写缓存时可减少锁竞争<br>
+     * 只在创建时生效，需要把配置器传给{@link HttpCache#create(android.content.Context, KJCacheConfig)}
+     */
+    public void setConcurrentMemoryCache(boolean concurrentMemoryCache) {
+        this.concurrentMemoryCache = concurrentMemoryCache;
+    }
+
+    /** 内存缓存是否使用W-TinyLFU准入策略 */
+    public boolean isUseTinyLfu() {
+        return useTinyLfu;
+    }
+
+    /**
+     * 内存缓存是否使用W-TinyLFU准入策略，仅对非并发内存缓存生效<br>
+     * 只在创建时生效，需要把配置器传给{@link HttpCache#create(android.content.Context, KJCacheConfig)}
+     */
+    public void setUseTinyLfu(boolean useTinyLfu) {
+        this.useTinyLfu = useTinyLfu;
+    }
+
+    /** 数据库缓存的最大条数 */
+    public int getMaxDbCount() {
+        return maxDbCount;
+    }
+
+    /** 数据库缓存的最大条数，超出时淘汰最久没有被读取的缓存 */
+    public void setMaxDbCount(int maxDbCount) {
+        this.maxDbCount = maxDbCount;
+    }
+
+    /** 数据库缓存内容的最大总大小，单位：字节 */
+    public long getMaxDbSize() {
+        return maxDbSize;
+    }
+
+    /** 数据库缓存内容的最大总大小，单位：字节，超出时淘汰最久没有被读取的缓存 */
+    public void setMaxDbSize(long maxDbSize) {
+        this.maxDbSize = maxDbSize;
+    }
+
+    /** 是否以DEFLATE压缩保存缓存内容 */
+    public boolean isCompressBody() {
+        return compressBody;
+    }
+
+    /**
+     * 是否以DEFLATE压缩保存缓存内容（内存与数据库中都保存压缩后的数据），
+     * 读取时才解压；适合内容较大的文本响应，会增加读写时的cpu开销
+     */
+    public void setCompressBody(boolean compressBody) {
+        this.compressBody = compressBody;
+    }
+
+    /** 保存时不小于该字节数的缓存内容写入文件，单位：字节 */
+    public long getFileThreshold() {
+        return fileThreshold;
+    }
+
+    /**
+     * 保存时（压缩后）不小于该字节数的缓存内容写入缓存目录下的文件，数据库只保存文件名，
+     * 单位：字节；设为Long.MAX_VALUE则全部保存在数据库中
+     */
+    public void setFileThreshold(long fileThreshold) {
+        this.fileThreshold = fileThreshold;
+    }
+
+    /** 过期后仍保留在数据库中的时间，单位：毫秒 */
+    public long getMaxStaleTime() {
+        return maxStaleTime;
+    }
+
+    /**
+     * 过期后仍保留在数据库中的时间，单位：毫秒；在此期间缓存仍可用于条件请求和离线读取，
+     * 之后被后台清理删除
+     */
+    public void setMaxStaleTime(long maxStaleTime) {
+        this.maxStaleTime = maxStaleTime;
+    }
+
+    /** 数据库空闲空间超过该值时执行增量VACUUM，单位：字节 */
+    public long getVacuumThreshold() {
+        return vacuumThreshold;
+    }
+
+    /**
+     * 数据库空闲空间超过该值时执行增量VACUUM，单位：字节<br>
+     * 只在应用的数据库已设置auto_vacuum=INCREMENTAL时生效，HttpCache不会修改数据库的auto_vacuum模式
+     */
+    public void setVacuumThreshold(long vacuumThreshold) {
+        this.vacuumThreshold = vacuumThreshold;
+    }
+
+    /**
+     * 为url匹配urlRegex的请求强制指定有效期，忽略服务器返回的Cache-Control/Expires（no-store仍然有效）
+     * 
+     * @param urlRegex
+     *            url中包含与之匹配的内容即生效
+     * @param effectiveTime
+     *            有效期，单位：毫秒
+     */
+    public void addOverrideRule(String urlRegex, long effectiveTime) {
+        rules.add(new Rule(Pattern.compile(urlRegex), effectiveTime, 0,
+                Long.MAX_VALUE));
+    }
+
+    /**
+     * 把url匹配urlRegex的请求的有效期限制在[minTime, maxTime]之间，
+     * 服务器没有指定有效期时先取effectiveTime再限制
+     * 
+     * @param urlRegex
+     *            url中包含与之匹配的内容即生效
+     * @param minTime
+     *            最短有效期，单位：毫秒
+     * @param maxTime
+     *            最长有效期，单位：毫秒
+     */
+    public void addClampRule(String urlRegex, long minTime, long maxTime) {
+        rules.add(new Rule(Pattern.compile(urlRegex), -1, minTime, maxTime));
+    }
+
+    /**
+     * 清除所有url有效期规则
+     */
+    public void clearRules() {
+        rules.clear();
+    }
+
+    /**
+     * 计算一条缓存实际使用的有效期
+     * 
+     * @param url
+     *            缓存对应的url
+     * @param serverTime
+     *            服务器指定的有效期，单位：毫秒；没有指定时为{@link CacheHeaders#NO_MAX_AGE}
+     * @return 有效期，单位：毫秒
+     */
+    public long getEffectiveTime(String url, long serverTime) {
+        long time = serverTime >= 0 ? serverTime : effectiveTime;
+        for (Rule rule : rules) {
+            if (rule.pattern.matcher(url).find()) {
+                if (rule.effectiveTime >= 0) {
+                    return rule.effectiveTime;
+                }
+                return Math.min(Math.max(time, rule.minTime), rule.maxTime);
+            }
+        }
+        return time;
+    }
+
+    /**
+     * 一条按url匹配的有效期规则
+     */
+    private static final class Rule {
+        final Pattern pattern;
+        /** 强制使用的有效期，-1表示只做限制 */
+        final long effectiveTime;
+        final long minTime;
+        final long maxTime;
+
+        Rule(Pattern pattern, long effectiveTime, long minTime, long maxTime) {
+            this.pattern = pattern;
+            this.effectiveTime = effectiveTime;
+            this.minTime = minTime;
+            this.maxTime = maxTime;
+        }
+    }
 }
@@ -21,6 +21,7 @@ import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
 
+import org.kymjs.aframe.core.ByteArrayPool;
 import org.kymjs.aframe.utils.FileUtils;
 
 /**
@@ -32,6 +33,7 @@ import org.kymjs.aframe.utils.FileUtils;
  * @version 1.0
  */
 public class DownloadThread extends Thread {
+    private static final int BUFFER_SIZE = 8 * 1024; // 读写缓冲区大小
     private File saveFile; // 保存的文件
     private URL url; // 下载地址
     private int block; // 下载的大小
@@ -74,6 +76,7 @@ public class DownloadThread extends Thread {
         if (downLength < block) {
             RandomAccessFile threadfile = null;
             InputStream inStream = null;
+            byte[] buffer = null;
             try {
                 // 使用Get方式下载
                 HttpURLConnection http = (HttpURLConnection) url
@@ -95,13 +98,13 @@ public class DownloadThread extends Thread {
                 http.setRequestProperty("Connection", "Keep-Alive");
 
                 inStream = http.getInputStream();
-                byte[] buffer = new byte[1024];
+                buffer = ByteArrayPool.getDefault().getBuf(BUFFER_SIZE);
                 int offset = 0;
                 threadfile = new RandomAccessFile(this.saveFile,
                         "rwd");
                 threadfile.seek(startPos);
 
-                while ((offset = inStream.read(buffer, 0, 1024)) != -1) {
+                while ((offset = inStream.read(buffer)) != -1) {
                     threadfile.write(buffer, 0, offset);
                     downLength += offset;
                     downloader.update(this.threadId, downLength);
@@ -112,6 +115,7 @@ public class DownloadThread extends Thread {
                 this.downLength = -3;
                 this.error = true;
             } finally {
+                ByteArrayPool.getDefault().returnBuf(buffer);
                 FileUtils.closeIO(threadfile, inStream);
             }
         }
@@ -26,7 +26,7 @@ import java.net.URL;
 import org.kymjs.aframe.core.KJException;
 import org.kymjs.aframe.core.SparseIntArray;
 import org.kymjs.aframe.http.I_HttpRespond;
-import org.kymjs.aframe.ui.KJActivityManager;
+import org.kymjs.aframe.http.ProgressReporter;
 
 /**
  * 多线程文件下载器类，你也可以通过实现I_MulThreadLoader或I_FileLoader接口协议来创建自己的下载器<br>
@@ -184,6 +184,10 @@ public class FileDownLoader implements I_MulThreadLoader {
     public int download(final I_HttpRespond callback) {
         URL url = initFile(); // 初始化每个线程的下载文件块
         initDownload(url); // 设置每个线程的下载任务
+        ProgressReporter progress = null;
+        if (callback != null && callback.isProgress()) {
+            progress = new ProgressReporter(callback);
+        }
 
         boolean isFinish = false;
         while (!isFinish) { // 阻塞态，判断所有线程是否完成下载
@@ -205,7 +209,10 @@ public class FileDownLoader implements I_MulThreadLoader {
                     }
                 }
             }
-            respondCallBackLoading(callback);
+            respondCallBackLoading(progress);
+        }
+        if (progress != null) {
+            progress.finish();
         }
         fragmentFile.delete(this.loadUrl);
         return this.loadSize;
@@ -273,20 +280,14 @@ public class FileDownLoader implements I_MulThreadLoader {
     }
 
     /**
-     * 响应监听器loading方法
+     * 响应监听器loading方法，由进度分发器按间隔合并后在UI线程中回调
      * 
-     * @param callback
+     * @param progress
+     *            没有设置进度监听器时为null
      */
-    private void respondCallBackLoading(final I_HttpRespond callback) {
-        // 如果设置了进度监听器，则在UI线程中回调相应方法
-        if (callback != null && callback.isProgress()) {
-            KJActivityManager.create().topActivity()
-                    .runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            callback.onLoading(fileSize, loadSize);
-                        }
-                    });
+    private void respondCallBackLoading(ProgressReporter progress) {
+        if (progress != null) {
+            progress.update(fileSize, loadSize);
         }
     }
 
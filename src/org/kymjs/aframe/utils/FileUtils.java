@@ -28,11 +28,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
 import org.kymjs.aframe.bitmap.utils.BitmapCreate;
 import org.kymjs.aframe.bitmap.utils.BitmapHelper;
 import org.kymjs.aframe.bitmap.utils.BitmapOperateUtil;
+import org.kymjs.aframe.core.ByteArrayPool;
 import org.kymjs.aframe.core.KJException;
 
 import android.app.Activity;
@@ -55,6 +58,8 @@ import android.provider.MediaStore;
  */
 public final class FileUtils {
     private static final String TAG = "FileUtils";
+    /** 读写循环使用的缓冲区大小，缓冲区从ByteArrayPool中复用 */
+    private static final int IO_BUFFER_SIZE = 4 * 1024;
 
 	/**
      * 检测SD卡是否存在
@@ -78,10 +83,15 @@ public final class FileUtils {
             try {
                 file.createNewFile();
                 os = new FileOutputStream(file);
-                byte[] buffer = new byte[1024];
-                int len = 0;
-                while (-1 != (len = is.read(buffer))) {
-                    os.write(buffer, 0, len);
+                byte[] buffer = ByteArrayPool.getDefault().getBuf(
+                        IO_BUFFER_SIZE);
+                try {
+                    int len = 0;
+                    while (-1 != (len = is.read(buffer))) {
+                        os.write(buffer, 0, len);
+                    }
+                } finally {
+                    ByteArrayPool.getDefault().returnBuf(buffer);
                 }
                 os.flush();
             } catch (Exception e) {
@@ -142,21 +152,81 @@ public final class FileUtils {
         }
         byte[] in2b = null;
         ByteArrayOutputStream swapStream = new ByteArrayOutputStream();
-        byte[] buff = new byte[100];
+        byte[] buff = ByteArrayPool.getDefault().getBuf(IO_BUFFER_SIZE);
         int rc = 0;
         try {
-            while ((rc = inStream.read(buff, 0, 100)) > 0) {
+            while ((rc = inStream.read(buff)) > 0) {
                 swapStream.write(buff, 0, rc);
             }
             in2b = swapStream.toByteArray();
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
+            ByteArrayPool.getDefault().returnBuf(buff);
             closeIO(swapStream);
         }
         return in2b;
     }
 
+    /**
+     * 文件转byte[]，按文件长度一次分配数组并通过FileChannel读入，不经过中间缓冲区
+     * 
+     * @return 文件不存在、无法读取或超过2G时返回null
+     */
+    public static byte[] file2byte(File file) {
+        if (file == null) {
+            return null;
+        }
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            FileChannel channel = fis.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+            byte[] data = new byte[(int) size];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    // 读取过程中文件被截短了
+                    return null;
+                }
+            }
+            return data;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            closeIO(fis);
+        }
+    }
+
+    /**
+     * 以只读方式将整个文件映射到内存，数据不会复制到java堆中，适合较大的文件<br>
+     * 
+     * <b>注意</b> 映射在返回后依然有效（文件已经关闭），直到buffer被回收
+     * 
+     * @return 文件不存在或无法映射时返回null
+     */
+    public static MappedByteBuffer mapFile(File file) {
+        if (file == null) {
+            return null;
+        }
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            FileChannel channel = fis.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            closeIO(fis);
+        }
+    }
+
     /**
      * 把uri转为File对象
      */